@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable state of one Xiaomi device. The values are the data fields last reported by the device
+ * (e.g. status, voltage, temperature) as received, a field keeps its value until the device reports it again.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public final class XiaomiDeviceState {
+
+    private final String sid;
+    private final String model;
+    private final String gatewaySid;
+    private final long lastSeen;
+    private final long lastUpdate;
+    private final Map<String, String> values;
+
+    public XiaomiDeviceState(String sid, String model, String gatewaySid, long lastSeen, long lastUpdate, Map<String, String> values) {
+        this.sid = sid;
+        this.model = model;
+        this.gatewaySid = gatewaySid;
+        this.lastSeen = lastSeen;
+        this.lastUpdate = lastUpdate;
+        this.values = Collections.unmodifiableMap(new HashMap<String, String>(values));
+    }
+
+    public String getSid() {
+        return sid;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * Returns the sid of the gateway the device is connected to
+     */
+    public String getGatewaySid() {
+        return gatewaySid;
+    }
+
+    /**
+     * Returns the time in ms of the last message received from the device
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Returns the time in ms of the last message carrying data fields
+     */
+    public long getLastUpdate() {
+        return lastUpdate;
+    }
+
+    /**
+     * Returns the last value of a data field or null if the device has not reported it
+     */
+    public String getValue(String field) {
+        return values.get(field);
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "XiaomiDeviceState{sid=" + sid + ", model=" + model + ", gatewaySid=" + gatewaySid + ", lastSeen=" + lastSeen + ", lastUpdate=" + lastUpdate + ", values=" + values + "}";
+    }
+}
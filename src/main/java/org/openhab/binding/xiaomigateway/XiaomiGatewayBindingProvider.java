@@ -17,4 +17,30 @@ import org.openhab.core.binding.BindingProvider;
 public interface XiaomiGatewayBindingProvider extends BindingProvider {
 
     String getItemType(String itemName);
+
+    /**
+     * Returns the function (avg, min, max, rate) of a derived item or null for items bound to the raw value
+     */
+    String getItemDerive(String itemName);
+
+    /**
+     * Returns the window of a derived item in milliseconds
+     */
+    long getItemWindow(String itemName);
+
+    /**
+     * Returns the function (min, max, mean, energy) of a plug power item published at the end of each window
+     * or null for items updated on every reported value
+     */
+    String getItemAggregate(String itemName);
+
+    /**
+     * Returns the minimal change of a numeric value to be published (deadband), 0 if not set
+     */
+    double getItemDelta(String itemName);
+
+    /**
+     * Returns the minimal interval in milliseconds between two published values, 0 if not set
+     */
+    long getItemMinInterval(String itemName);
 }
@@ -0,0 +1,46 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway;
+
+import java.util.Map;
+
+/**
+ * Last known state of the Xiaomi devices as received by the binding, served from memory
+ * without asking the gateway. Registered as an OSGi service by the binding.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface XiaomiGatewayStateService {
+
+    /**
+     * Returns the last known state of the device or null if nothing has been received from it yet
+     */
+    XiaomiDeviceState getDeviceState(String sid);
+
+    /**
+     * Returns an unmodifiable snapshot of the last known state of all devices keyed by sid
+     */
+    Map<String, XiaomiDeviceState> getDeviceStates();
+
+    /**
+     * Returns true once all devices with bound items have answered after the binding has been started
+     * (or the sync timeout has elapsed)
+     */
+    boolean isInitialSyncComplete();
+
+    /**
+     * Returns a snapshot of the history of a numeric device value within the window, e.g.
+     * getSensorHistory("158d0001182814", "temperature", now - 3600000, now), or null if no item is bound to the value
+     *
+     * @param from start of the window in ms
+     * @param to   end of the window in ms
+     */
+    XiaomiSensorHistory getSensorHistory(String sid, String event, long from, long to);
+}
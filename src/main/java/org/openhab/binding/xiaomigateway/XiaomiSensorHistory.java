@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway;
+
+/**
+ * Immutable snapshot of the history of one numeric device value (e.g. temperature of a single sid) within a time window.
+ * It holds the raw samples still kept by the binding and the minimum, maximum, average and rate of change of the window,
+ * which are computed from coarser buckets once the raw samples of the window have been overwritten.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public final class XiaomiSensorHistory {
+
+    private final String sid;
+    private final String event;
+    private final long from;
+    private final long to;
+    private final double minimum;
+    private final double maximum;
+    private final double average;
+    private final double rateOfChange;
+    private final long[] timestamps;
+    private final double[] values;
+
+    public XiaomiSensorHistory(String sid, String event, long from, long to, double minimum, double maximum,
+                               double average, double rateOfChange, long[] timestamps, double[] values) {
+        if (timestamps.length != values.length) {
+            throw new IllegalArgumentException("Got " + timestamps.length + " timestamps for " + values.length + " values");
+        }
+        this.sid = sid;
+        this.event = event;
+        this.from = from;
+        this.to = to;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.average = average;
+        this.rateOfChange = rateOfChange;
+        this.timestamps = timestamps.clone();
+        this.values = values.clone();
+    }
+
+    public String getSid() {
+        return sid;
+    }
+
+    /**
+     * Returns the data field of the history, e.g. temperature
+     */
+    public String getEvent() {
+        return event;
+    }
+
+    /**
+     * Returns the start of the window in ms
+     */
+    public long getFrom() {
+        return from;
+    }
+
+    /**
+     * Returns the end of the window in ms
+     */
+    public long getTo() {
+        return to;
+    }
+
+    /**
+     * Returns the minimum of the window or NaN if there is no sample
+     */
+    public double getMinimum() {
+        return minimum;
+    }
+
+    /**
+     * Returns the maximum of the window or NaN if there is no sample
+     */
+    public double getMaximum() {
+        return maximum;
+    }
+
+    /**
+     * Returns the average of the window or NaN if there is no sample
+     */
+    public double getAverage() {
+        return average;
+    }
+
+    /**
+     * Returns the change per minute within the window or NaN if there are less than two samples
+     */
+    public double getRateOfChange() {
+        return rateOfChange;
+    }
+
+    /**
+     * Returns the number of raw samples of the window
+     */
+    public int size() {
+        return timestamps.length;
+    }
+
+    /**
+     * Returns a copy of the times in ms of the raw samples, oldest first
+     */
+    public long[] getTimestamps() {
+        return timestamps.clone();
+    }
+
+    /**
+     * Returns a copy of the raw sample values, in the order of {@link #getTimestamps()}
+     */
+    public double[] getValues() {
+        return values.clone();
+    }
+
+    @Override
+    public String toString() {
+        return "XiaomiSensorHistory{sid=" + sid + ", event=" + event + ", from=" + from + ", to=" + to + ", minimum=" + minimum + ", maximum=" + maximum + ", average=" + average + ", rateOfChange=" + rateOfChange + ", samples=" + timestamps.length + "}";
+    }
+}
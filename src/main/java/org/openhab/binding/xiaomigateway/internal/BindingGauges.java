@@ -0,0 +1,49 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.Map;
+
+/**
+ * Known devices, bound items and threads of the binding
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class BindingGauges implements BindingGaugesMBean {
+
+    private final Map<String, String> devices;
+    private final BindingIndex index;
+
+    BindingGauges(Map<String, String> devices, BindingIndex index) {
+        this.devices = devices;
+        this.index = index;
+    }
+
+    @Override
+    public int getKnownDevices() {
+        return devices.size();
+    }
+
+    @Override
+    public int getBoundItems() {
+        return index.size();
+    }
+
+    @Override
+    public int getBindingThreads() {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("XiaomiGateway") && t.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Sizes which should stay flat on a long running instance, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=Binding
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface BindingGaugesMBean {
+
+    int getKnownDevices();
+
+    int getBoundItems();
+
+    /**
+     * Returns the number of live threads of the binding (refresh service, receiver, sender, publisher, scheduler)
+     */
+    int getBindingThreads();
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.openhab.binding.xiaomigateway.XiaomiGatewayBindingProvider;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-item and per-sid lookup of the item bindings, maintained incrementally from the binding change callbacks.
+ * Values are immutable and replaced as a whole (copy-on-write), so packet dispatch reads them without locking
+ * while an items file is being reloaded. Routes are kept in a primitive map by packed sid ({@link PackedSid}),
+ * which is copied once per change of the bindings.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class BindingIndex {
+
+    /**
+     * Items bound to one sid and the data fields they need
+     */
+    static class Route {
+        final ItemBinding[] items;
+        final int fieldMask;
+
+        Route(ItemBinding[] items) {
+            int mask = 0;
+            for (ItemBinding item : items) {
+                mask |= item.fieldMask;
+            }
+            this.items = items;
+            this.fieldMask = mask;
+        }
+    }
+
+    private final Map<String, ItemBinding> items = new ConcurrentHashMap<String, ItemBinding>();
+
+    //routes by packed sid, replaced as a whole, and routes of sids which cannot be packed
+    private volatile LongMap<Route> packedRoutes = new LongMap<Route>();
+    private final Map<String, Route> otherRoutes = new ConcurrentHashMap<String, Route>();
+
+    ItemBinding getItem(String itemName) {
+        return items.get(itemName);
+    }
+
+    /**
+     * Returns the items bound to the sid or null if there is none
+     */
+    Route getRoute(String sid) {
+        long packed = PackedSid.pack(sid);
+        if (packed != PackedSid.NONE) {
+            return packedRoutes.get(packed);
+        }
+        return sid != null ? otherRoutes.get(sid) : null;
+    }
+
+    int size() {
+        return items.size();
+    }
+
+    /**
+     * Returns the sids with bound items
+     */
+    Set<String> getSids() {
+        Set<String> sids = new HashSet<String>();
+        for (ItemBinding binding : items.values()) {
+            if (!binding.sid.isEmpty()) {
+                sids.add(binding.sid);
+            }
+        }
+        return sids;
+    }
+
+    /**
+     * Adds, updates or removes the binding of a single item
+     *
+     * @return the previous binding of the item or null
+     */
+    synchronized ItemBinding update(XiaomiGatewayBindingProvider provider, String itemName) {
+        LongMap<Route> routes = packedRoutes.copy();
+        ItemBinding old = update(provider, itemName, routes);
+        packedRoutes = routes;
+        return old;
+    }
+
+    /**
+     * Replaces all bindings of the provider, e.g. after the provider has been added or removed
+     *
+     * @return the previous bindings of the provider
+     */
+    synchronized List<ItemBinding> update(XiaomiGatewayBindingProvider provider, boolean active) {
+        LongMap<Route> routes = packedRoutes.copy();
+        List<ItemBinding> old = new ArrayList<ItemBinding>();
+        for (ItemBinding binding : items.values()) {
+            if (binding.provider == provider) {
+                items.remove(binding.itemName);
+                removeRoute(binding, routes);
+                old.add(binding);
+            }
+        }
+        if (active) {
+            for (String itemName : provider.getItemNames()) {
+                update(provider, itemName, routes);
+            }
+        }
+        packedRoutes = routes;
+        return old;
+    }
+
+    synchronized void clear() {
+        items.clear();
+        packedRoutes = new LongMap<Route>();
+        otherRoutes.clear();
+    }
+
+    private ItemBinding update(XiaomiGatewayBindingProvider provider, String itemName, LongMap<Route> routes) {
+        String type = provider.providesBindingFor(itemName) ? provider.getItemType(itemName) : null;
+        ItemBinding old = items.get(itemName);
+        if (old != null) {
+            if (type == null && old.provider != provider) {
+                //bound by another provider
+                return null;
+            }
+            removeRoute(old, routes);
+        }
+        if (type != null) {
+            ItemBinding binding = new ItemBinding(provider, itemName, type);
+            items.put(itemName, binding);
+            addRoute(binding, routes);
+        } else {
+            items.remove(itemName);
+        }
+        return old;
+    }
+
+    private void addRoute(ItemBinding binding, LongMap<Route> routes) {
+        if (binding.sid.isEmpty()) {
+            return;
+        }
+        Route route = getRoute(binding, routes);
+        ItemBinding[] bindings;
+        if (route == null) {
+            bindings = new ItemBinding[]{binding};
+        } else {
+            bindings = new ItemBinding[route.items.length + 1];
+            System.arraycopy(route.items, 0, bindings, 0, route.items.length);
+            bindings[route.items.length] = binding;
+        }
+        putRoute(binding, new Route(bindings), routes);
+    }
+
+    private void removeRoute(ItemBinding binding, LongMap<Route> routes) {
+        Route route = getRoute(binding, routes);
+        if (route == null) {
+            return;
+        }
+        ItemBinding[] bindings = new ItemBinding[route.items.length];
+        int size = 0;
+        for (ItemBinding item : route.items) {
+            if (!item.itemName.equals(binding.itemName)) {
+                bindings[size++] = item;
+            }
+        }
+        if (size == 0) {
+            putRoute(binding, null, routes);
+        } else if (size < route.items.length) {
+            ItemBinding[] remaining = new ItemBinding[size];
+            System.arraycopy(bindings, 0, remaining, 0, size);
+            putRoute(binding, new Route(remaining), routes);
+        }
+    }
+
+    private Route getRoute(ItemBinding binding, LongMap<Route> routes) {
+        return binding.packedSid != PackedSid.NONE ? routes.get(binding.packedSid) : otherRoutes.get(binding.sid);
+    }
+
+    /**
+     * Sets or removes (null) the route of the binding's sid
+     */
+    private void putRoute(ItemBinding binding, Route route, LongMap<Route> routes) {
+        if (binding.packedSid != PackedSid.NONE) {
+            if (route != null) {
+                routes.put(binding.packedSid, route);
+            } else {
+                routes.remove(binding.packedSid);
+            }
+        } else if (route != null) {
+            otherRoutes.put(binding.sid, route);
+        } else {
+            otherRoutes.remove(binding.sid);
+        }
+    }
+}
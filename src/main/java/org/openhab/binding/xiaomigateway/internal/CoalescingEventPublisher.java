@@ -0,0 +1,288 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.openhab.core.events.EventPublisher;
+import org.openhab.core.types.Command;
+import org.openhab.core.types.State;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decouples the receive thread from the openHAB event bus. State updates are kept in a latest-value
+ * slot per item, so an update still waiting for the publisher thread is replaced by a newer one.
+ * Commands (click, double_click, cube gestures...) are queued and delivered in order.
+ * All updates derived from one packet can be handed over as one {@link UpdateBatch}, which is
+ * a single queue entry published at once by the publisher thread. A pending update belongs to the newest
+ * batch (or single update) carrying the item, so an older batch gives up its superseded items and the values
+ * of one packet are always published together.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class CoalescingEventPublisher implements CoalescingEventPublisherMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(CoalescingEventPublisher.class);
+
+    //the queue holds item names and batches of pending updates and PendingCommand entries for commands
+    private final BlockingQueue<Object> queue;
+    private final Map<String, PendingUpdate> pendingUpdates = new ConcurrentHashMap<String, PendingUpdate>();
+
+    private volatile EventPublisher eventPublisher;
+    private Thread thread;
+
+    private final AtomicLong publishedUpdates = new AtomicLong();
+    private final AtomicLong publishedCommands = new AtomicLong();
+    private final AtomicLong publishedBatches = new AtomicLong();
+    private volatile long batchDelay = 0;
+    private final AtomicLong coalescedUpdates = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    CoalescingEventPublisher(int capacity) {
+        queue = new ArrayBlockingQueue<Object>(capacity);
+    }
+
+    void setEventPublisher(EventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    synchronized void start() {
+        if (thread != null && thread.isAlive()) {
+            return;
+        }
+        thread = new Thread(this::publishEvents, "XiaomiGateway event publisher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        queue.clear();
+        pendingUpdates.clear();
+    }
+
+    void postUpdate(String itemName, State newState) {
+        PendingUpdate update = new PendingUpdate(newState, null);
+        PendingUpdate previous = pendingUpdates.put(itemName, update);
+        if (previous != null) {
+            //the publisher thread has not taken the previous update yet
+            coalescedUpdates.incrementAndGet();
+            if (previous.batch == null) {
+                //published by the queue entry of the previous update
+                return;
+            }
+        }
+        if (!queue.offer(itemName)) {
+            pendingUpdates.remove(itemName, update);
+            dropped(itemName);
+        }
+    }
+
+    /**
+     * Publishes all updates of the batch together. An item with an update still pending elsewhere is taken
+     * over by this batch, the older update is coalesced.
+     */
+    void postUpdates(UpdateBatch batch) {
+        if (batch.size == 0) {
+            return;
+        }
+        for (int i = 0; i < batch.size; i++) {
+            if (pendingUpdates.put(batch.itemNames[i], new PendingUpdate(batch.states[i], batch)) != null) {
+                coalescedUpdates.incrementAndGet();
+            }
+        }
+        if (!queue.offer(batch)) {
+            for (int i = 0; i < batch.size; i++) {
+                if (removeOwned(batch.itemNames[i], batch) != null) {
+                    dropped(batch.itemNames[i]);
+                }
+            }
+        }
+    }
+
+    void sendCommand(String itemName, Command command) {
+        if (!queue.offer(new PendingCommand(itemName, command))) {
+            dropped(itemName);
+        }
+    }
+
+    @Override
+    public long getPublishedUpdates() {
+        return publishedUpdates.get();
+    }
+
+    @Override
+    public long getPublishedCommands() {
+        return publishedCommands.get();
+    }
+
+    @Override
+    public long getPublishedBatches() {
+        return publishedBatches.get();
+    }
+
+    /**
+     * Returns the time in ms between receiving the packet of the last published batch and publishing it
+     */
+    @Override
+    public long getBatchDelay() {
+        return batchDelay;
+    }
+
+    @Override
+    public long getCoalescedUpdates() {
+        return coalescedUpdates.get();
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    @Override
+    public int getPendingEvents() {
+        return queue.size();
+    }
+
+    private void dropped(String itemName) {
+        if (droppedEvents.incrementAndGet() % 100 == 1) {
+            logger.warn("Event queue is full, dropping event for item: {} (dropped {} events so far)", itemName, droppedEvents.get());
+        }
+    }
+
+    /**
+     * Takes the pending update of the item if it belongs to the batch (null for a single update)
+     *
+     * @return the state or null if there is none or it belongs to a newer batch
+     */
+    private State removeOwned(String itemName, UpdateBatch batch) {
+        while (true) {
+            PendingUpdate update = pendingUpdates.get(itemName);
+            if (update == null || update.batch != batch) {
+                return null;
+            }
+            if (pendingUpdates.remove(itemName, update)) {
+                return update.state;
+            }
+            if (batch != null) {
+                //replaced meanwhile, the newer update has its own queue entry
+                return null;
+            }
+            //replaced by a newer single update without a queue entry of its own
+        }
+    }
+
+    private void publishEvents() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Object entry = queue.take();
+                EventPublisher publisher = eventPublisher;
+                if (entry instanceof UpdateBatch) {
+                    UpdateBatch batch = (UpdateBatch) entry;
+                    for (int i = 0; i < batch.size; i++) {
+                        String itemName = batch.itemNames[i];
+                        State state = removeOwned(itemName, batch);
+                        if (state != null && publisher != null) {
+                            publisher.postUpdate(itemName, state);
+                            publishedUpdates.incrementAndGet();
+                        }
+                    }
+                    publishedBatches.incrementAndGet();
+                    batchDelay = System.currentTimeMillis() - batch.getTimestamp();
+                } else if (entry instanceof PendingCommand) {
+                    PendingCommand command = (PendingCommand) entry;
+                    if (publisher != null) {
+                        publisher.sendCommand(command.itemName, command.command);
+                        publishedCommands.incrementAndGet();
+                    }
+                } else {
+                    String itemName = (String) entry;
+                    State state = removeOwned(itemName, null);
+                    if (state != null && publisher != null) {
+                        publisher.postUpdate(itemName, state);
+                        publishedUpdates.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error(e.toString());
+            }
+        }
+    }
+
+    /**
+     * State updates derived from one packet, all sharing the packet timestamp
+     */
+    static class UpdateBatch {
+        private final long timestamp;
+        private String[] itemNames = new String[4];
+        private State[] states = new State[4];
+        private int size = 0;
+
+        UpdateBatch(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        void add(String itemName, State state) {
+            for (int i = 0; i < size; i++) {
+                if (itemNames[i].equals(itemName)) {
+                    states[i] = state;
+                    return;
+                }
+            }
+            if (size == itemNames.length) {
+                itemNames = Arrays.copyOf(itemNames, size * 2);
+                states = Arrays.copyOf(states, size * 2);
+            }
+            itemNames[size] = itemName;
+            states[size] = state;
+            size++;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+
+    private static class PendingUpdate {
+        final State state;
+        final UpdateBatch batch;
+
+        PendingUpdate(State state, UpdateBatch batch) {
+            this.state = state;
+            this.batch = batch;
+        }
+    }
+
+    private static class PendingCommand {
+        final String itemName;
+        final Command command;
+
+        PendingCommand(String itemName, Command command) {
+            this.itemName = itemName;
+            this.command = command;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.openhab.binding.xiaomigateway.XiaomiDeviceState;
+import org.openhab.binding.xiaomigateway.model.GatewayDataResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last known state of every device. A message only records its raw data, the data is decoded and merged
+ * into the last known values when the state of the device is queried, so the packet path does not decode
+ * packets of devices without bound items. The immutable {@link XiaomiDeviceState} is created once per query
+ * after a change and cached until the next message of the device.
+ * Updated only from the packet dispatch, which is single threaded.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class DeviceStateStore {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(DeviceStateStore.class);
+
+    //raw data kept per device before it is merged even without a query
+    private static final int MAX_PENDING = 16;
+
+    private final Map<String, Device> devices = new ConcurrentHashMap<String, Device>();
+
+    //snapshot of all states, recreated on the first read after a change
+    private volatile long version = 0;
+    private volatile Snapshot snapshot = null;
+
+    /**
+     * Records a message of the device, the data fields (if any) are merged into the last known values on the next query
+     */
+    void update(String sid, String model, String gatewaySid, String data, long now) {
+        Device device = devices.get(sid);
+        if (device == null) {
+            device = new Device(sid);
+            devices.put(sid, device);
+        }
+        device.update(model, gatewaySid, data, now);
+        version++;
+    }
+
+    XiaomiDeviceState get(String sid) {
+        Device device = sid != null ? devices.get(sid) : null;
+        return device != null ? device.getState() : null;
+    }
+
+    Map<String, XiaomiDeviceState> getAll() {
+        Snapshot current = snapshot;
+        long v = version;
+        if (current == null || current.version != v) {
+            Map<String, XiaomiDeviceState> states = new HashMap<String, XiaomiDeviceState>();
+            for (Device device : devices.values()) {
+                states.put(device.sid, device.getState());
+            }
+            current = new Snapshot(v, Collections.unmodifiableMap(states));
+            snapshot = current;
+        }
+        return current.states;
+    }
+
+    void clear() {
+        devices.clear();
+        version++;
+    }
+
+    private static class Device {
+        private final String sid;
+        private String model;
+        private String gatewaySid;
+        private long lastSeen;
+        private long lastUpdate = 0;
+
+        //values merged so far and the raw data received since, merged on the next query
+        private final Map<String, String> values = new HashMap<String, String>();
+        private final List<String> pending = new ArrayList<String>();
+        private XiaomiDeviceState state = null;
+
+        Device(String sid) {
+            this.sid = sid;
+        }
+
+        synchronized void update(String model, String gatewaySid, String data, long now) {
+            this.model = model;
+            this.gatewaySid = gatewaySid;
+            this.lastSeen = now;
+            if (data != null) {
+                if (pending.size() == MAX_PENDING) {
+                    merge();
+                }
+                pending.add(data);
+                lastUpdate = now;
+            }
+            state = null;
+        }
+
+        synchronized XiaomiDeviceState getState() {
+            if (state == null) {
+                merge();
+                state = new XiaomiDeviceState(sid, model, gatewaySid, lastSeen, lastUpdate, values);
+            }
+            return state;
+        }
+
+        private void merge() {
+            for (String data : pending) {
+                try {
+                    GatewayDataResponse.readValues(data, values);
+                } catch (Exception e) {
+                    logger.debug("Cannot read state of device - sid: {} data: {}", sid, data);
+                }
+            }
+            pending.clear();
+        }
+    }
+
+    private static class Snapshot {
+        final long version;
+        final Map<String, XiaomiDeviceState> states;
+
+        Snapshot(long version, Map<String, XiaomiDeviceState> states) {
+            this.version = version;
+            this.states = states;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Time bounded cache of the last report of every device. Gateways repeat the same multicast report several times
+ * within milliseconds, a report repeating the previous report of its sid within the TTL is a duplicate. A report
+ * returning to an older value (open, close, open) is not, it changes the state of the device.
+ * Entries are 64 bit fingerprints of (sid, cmd) with the fingerprint of their last data in a small open addressing
+ * table of primitive arrays, so a lookup does not allocate. Not thread safe, callers synchronize.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class DuplicateFilter implements DuplicateFilterMBean {
+
+    private static final int CAPACITY = 256;
+    private static final int MAX_PROBES = 8;
+
+    private final long[] keys = new long[CAPACITY];
+    private final long[] fingerprints = new long[CAPACITY];
+    private final long[] expirations = new long[CAPACITY];
+    private long ttl;
+    private volatile long duplicates = 0;
+
+    DuplicateFilter(long ttl) {
+        this.ttl = ttl;
+    }
+
+    void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Returns true if the previous report of the sid had the same data and was seen within the TTL,
+     * otherwise remembers the report as the last one of the sid
+     */
+    boolean isDuplicate(String sid, String cmd, String data, long now) {
+        if (ttl <= 0) {
+            return false;
+        }
+        long key = key(sid, cmd);
+        long fingerprint = fingerprint(data);
+        int home = (int) (key ^ (key >>> 32)) & (CAPACITY - 1);
+        int free = -1;
+        for (int i = 0; i < MAX_PROBES; i++) {
+            int idx = (home + i) & (CAPACITY - 1);
+            if (expirations[idx] <= now) {
+                if (free < 0) {
+                    free = idx;
+                }
+            } else if (keys[idx] == key) {
+                if (fingerprints[idx] == fingerprint) {
+                    duplicates++;
+                    return true;
+                }
+                free = idx;
+                break;
+            }
+        }
+        int idx = free >= 0 ? free : home;
+        keys[idx] = key;
+        fingerprints[idx] = fingerprint;
+        expirations[idx] = now + ttl;
+        return false;
+    }
+
+    @Override
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            expirations[i] = 0;
+        }
+    }
+
+    private static long key(String sid, String cmd) {
+        long high = sid != null ? sid.hashCode() : 0;
+        long low = cmd != null ? cmd.hashCode() : 0;
+        return (high << 32) ^ low;
+    }
+
+    //64 bit FNV-1a over the chars
+    private static long fingerprint(String data) {
+        if (data == null) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < data.length(); i++) {
+            hash ^= data.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
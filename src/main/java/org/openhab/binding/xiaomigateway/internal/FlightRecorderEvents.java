@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Emits Java Flight Recorder events for the lifecycle of a packet (see {@link JfrEvents}).
+ * JFR is optional: without jdk.jfr (older JVM or not imported by the OSGi framework) the methods do nothing,
+ * with JFR the events cost close to nothing until they are enabled in a recording.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+final class FlightRecorderEvents {
+
+    static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents() {
+    }
+
+    static void packetReceived(String sid, String cmd, String model, int size, long decodeTime, long processTime) {
+        if (AVAILABLE) {
+            JfrEvents.packetReceived(sid, cmd, model, size, decodeTime, processTime);
+        }
+    }
+
+    static void packetDispatched(String sid, String model, int items, int updates, long dispatchTime, long publishTime) {
+        if (AVAILABLE) {
+            JfrEvents.packetDispatched(sid, model, items, updates, dispatchTime, publishTime);
+        }
+    }
+
+    static void requestSent(String cmd, String sid, int priority, long queueTime, long sendTime) {
+        if (AVAILABLE) {
+            JfrEvents.requestSent(cmd, sid, priority, queueTime, sendTime);
+        }
+    }
+
+    static void ackMatched(String cmd, String sid, long roundTrip) {
+        if (AVAILABLE) {
+            JfrEvents.ackMatched(cmd, sid, roundTrip);
+        }
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+}
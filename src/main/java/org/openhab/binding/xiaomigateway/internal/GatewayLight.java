@@ -0,0 +1,94 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * State of the gateway light packed into one long, updated by compare-and-set:
+ * the low 32 bits hold the gateway rgb value (brightness << 24 | red << 16 | green << 8 | blue),
+ * the high 32 bits hold the illumination. Readers always see a consistent brightness and color.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class GatewayLight {
+
+    private static final long RGB_MASK = 0xFFFFFFFFL;
+    private static final long COLOR_MASK = 0xFFFFFFL;
+
+    private final AtomicLong state = new AtomicLong();
+
+    long getRgb() {
+        return rgb(state.get());
+    }
+
+    int getIllumination() {
+        return illumination(state.get());
+    }
+
+    /**
+     * Stores the rgb value reported by the gateway
+     */
+    void setRgb(long rgb) {
+        update(s -> withRgb(s, rgb));
+    }
+
+    void setIllumination(int illumination) {
+        update(s -> ((long) illumination << 32) | (s & RGB_MASK));
+    }
+
+    /**
+     * Replaces the color keeping the current brightness
+     *
+     * @return the new rgb value
+     */
+    long setColor(int red, int green, int blue) {
+        long color = ((long) (red & 0xFF) << 16) | ((green & 0xFF) << 8) | (blue & 0xFF);
+        return rgb(update(s -> withRgb(s, (rgb(s) & ~COLOR_MASK) | color)));
+    }
+
+    /**
+     * Replaces the brightness keeping the current color, does nothing if the light is off
+     *
+     * @return the new rgb value or 0 if the light is off
+     */
+    long setBrightness(int brightness) {
+        return rgb(update(s -> rgb(s) == 0 ? s : withRgb(s, ((long) (brightness & 0xFF) << 24) | (rgb(s) & COLOR_MASK))));
+    }
+
+    void clear() {
+        state.set(0);
+    }
+
+    static int brightness(long rgb) {
+        return (int) ((rgb >>> 24) & 0xFF);
+    }
+
+    static int color(long rgb) {
+        return (int) (rgb & COLOR_MASK);
+    }
+
+    private long update(LongUnaryOperator function) {
+        return state.updateAndGet(function);
+    }
+
+    private static long rgb(long state) {
+        return state & RGB_MASK;
+    }
+
+    private static int illumination(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static long withRgb(long state, long rgb) {
+        return (state & ~RGB_MASK) | (rgb & RGB_MASK);
+    }
+}
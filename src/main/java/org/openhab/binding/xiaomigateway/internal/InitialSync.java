@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the initial synchronization after the binding has been activated. When the gateway is discovered
+ * the devices with bound items are read right away, the initial sync is complete when all of them have answered
+ * (or the timeout has elapsed). Also measures the time to the first state of every item since activation.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class InitialSync implements InitialSyncMBean {
+
+    interface Listener {
+        /**
+         * @param duration time since activation in ms
+         * @param missing  devices which have not answered before the timeout
+         */
+        void completed(long duration, int missing);
+    }
+
+    private final Listener listener;
+    private final Set<String> pending = new HashSet<String>();
+    private final Set<String> requested = new HashSet<String>();
+    private final Map<String, Long> firstStates = new ConcurrentHashMap<String, Long>();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private long timeout = 30000;
+    private volatile long start = -1;
+    private boolean discovered = false;
+    private volatile long duration = -1;
+
+    InitialSync(Listener listener) {
+        this.listener = listener;
+    }
+
+    synchronized void start(long now, long timeout) {
+        clear();
+        this.start = now;
+        this.timeout = timeout;
+    }
+
+    /**
+     * The gateway has been discovered, the devices are read by the initial sync
+     *
+     * @return false if the initial sync is not running or the devices are already being read
+     */
+    synchronized boolean discovered(Collection<String> sids, long now) {
+        if (start < 0 || discovered || duration >= 0) {
+            return false;
+        }
+        discovered = true;
+        pending.addAll(sids);
+        requested.addAll(sids);
+        check(now);
+        return true;
+    }
+
+    /**
+     * Returns true if the device has already been read by the initial sync still in progress
+     */
+    synchronized boolean isRequested(String sid) {
+        return duration < 0 && requested.contains(sid);
+    }
+
+    /**
+     * A message with the state of the device has been received
+     */
+    synchronized void seen(String sid, long now) {
+        if (pending.remove(sid)) {
+            check(now);
+        }
+    }
+
+    /**
+     * An item has been updated, records the time to its first state
+     */
+    void stateReceived(String itemName, long now) {
+        long started = start;
+        if (started < 0 || firstStates.containsKey(itemName)) {
+            return;
+        }
+        if (firstStates.putIfAbsent(itemName, now - started) == null) {
+            histogram.record(now - started);
+        }
+    }
+
+    synchronized void tick(long now) {
+        if (start >= 0 && duration < 0 && now - start >= timeout) {
+            complete(now);
+        }
+    }
+
+    boolean isComplete() {
+        return duration >= 0;
+    }
+
+    /**
+     * Returns the time from activation to the complete initial sync in ms or -1
+     */
+    @Override
+    public long getDuration() {
+        return duration;
+    }
+
+    @Override
+    public long getTimeToFirstStateP50() {
+        return histogram.getPercentile(50);
+    }
+
+    @Override
+    public long getTimeToFirstStateMax() {
+        return histogram.getMax();
+    }
+
+    /**
+     * Returns the time to the first state of every updated item, sorted by item name
+     */
+    @Override
+    public String[] getItemFirstStates() {
+        Map<String, Long> sorted = new TreeMap<String, Long>(firstStates);
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+            lines[i++] = entry.getKey() + ": " + entry.getValue() + " ms";
+        }
+        return lines;
+    }
+
+    synchronized void clear() {
+        start = -1;
+        duration = -1;
+        discovered = false;
+        pending.clear();
+        requested.clear();
+        firstStates.clear();
+        histogram.clear();
+    }
+
+    private void check(long now) {
+        if (discovered && pending.isEmpty() && duration < 0) {
+            complete(now);
+        }
+    }
+
+    private void complete(long now) {
+        duration = now - start;
+        int missing = pending.size();
+        pending.clear();
+        listener.completed(duration, missing);
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Progress of the initial sync, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=InitialSync
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface InitialSyncMBean {
+
+    /**
+     * Time in ms from activation until all devices with bound items have answered, -1 while in progress
+     */
+    long getDuration();
+
+    long getTimeToFirstStateP50();
+
+    long getTimeToFirstStateMax();
+
+    /**
+     * Time in ms from activation to the first state of every item, one line per item
+     */
+    String[] getItemFirstStates();
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.openhab.binding.xiaomigateway.XiaomiGatewayBindingProvider;
+import org.openhab.binding.xiaomigateway.model.GatewayDataResponse;
+
+/**
+ * Immutable snapshot of one item binding with the item type already split into sid, channel and event
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class ItemBinding {
+
+    final XiaomiGatewayBindingProvider provider;
+    final String itemName;
+    final String type;
+    final String sid;
+    final long packedSid;
+    final String channel;
+    final String event;
+    final String derive;
+    final String aggregate;
+    final long window;
+    final double delta;
+    final long minInterval;
+
+    //fields of the data object needed to process the events of this item
+    final int fieldMask;
+
+    ItemBinding(XiaomiGatewayBindingProvider provider, String itemName, String type) {
+        this.provider = provider;
+        this.itemName = itemName;
+        this.type = type;
+        this.sid = getSid(type);
+        this.packedSid = PackedSid.pack(sid);
+        this.channel = getChannel(type);
+        this.event = getEvent(type);
+        this.derive = provider.getItemDerive(itemName);
+        this.aggregate = provider.getItemAggregate(itemName);
+        this.window = provider.getItemWindow(itemName);
+        this.delta = provider.getItemDelta(itemName);
+        this.minInterval = provider.getItemMinInterval(itemName);
+        this.fieldMask = getFieldMask(event);
+    }
+
+    static String getEvent(String itemType) {
+        if (!itemType.contains("."))
+            return "";
+        int pos = itemType.lastIndexOf('.');
+        return itemType.substring(pos + 1);
+    }
+
+    static String getChannel(String itemType) {
+        if (!itemType.contains("."))
+            return "";
+        String[] parts = itemType.split("\\.");
+        if (parts.length > 2)
+            return parts[1];
+        else
+            return parts[0];
+    }
+
+    static String getSid(String itemType) {
+        if (!itemType.contains("."))
+            return "";
+        return itemType.split("\\.")[0];
+    }
+
+    /**
+     * Returns the data fields needed to process an event
+     */
+    static int getFieldMask(String event) {
+        switch (event) {
+            case "temperature":
+                return GatewayDataResponse.TEMPERATURE;
+            case "humidity":
+                return GatewayDataResponse.HUMIDITY;
+            case "pressure":
+                return GatewayDataResponse.PRESSURE;
+            case "light":
+            case "color":
+            case "brightness":
+                return GatewayDataResponse.RGB;
+            case "illumination":
+                return GatewayDataResponse.ILLUMINATION;
+            case "virtual_switch":
+            case "click":
+            case "double_click":
+            case "both_click":
+            case "long_click":
+            case "long_click_release":
+            case "switch":
+                return GatewayDataResponse.STATUS | GatewayDataResponse.CHANNEL_0 | GatewayDataResponse.CHANNEL_1 | GatewayDataResponse.DUAL_CHANNEL;
+            case "magnet":
+            case "motion":
+            case "plug":
+            case "alarm":
+                return GatewayDataResponse.STATUS;
+            case "inuse":
+                return GatewayDataResponse.INUSE | GatewayDataResponse.STATUS;
+            case "power_consumed":
+            case "load_power":
+                return GatewayDataResponse.POWER_CONSUMED | GatewayDataResponse.LOAD_POWER | GatewayDataResponse.STATUS;
+            case "voltage":
+                return GatewayDataResponse.VOLTAGE;
+            case "density":
+                return GatewayDataResponse.DENSITY;
+            case "online":
+                return 0;
+            default:
+                //cube events
+                return GatewayDataResponse.STATUS | GatewayDataResponse.ROTATE;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events of the binding, only loaded by {@link FlightRecorderEvents} when jdk.jfr is present.
+ * All events are disabled by default, enable them in a recording e.g. with
+ * jcmd &lt;pid&gt; JFR.start settings=profile +org.openhab.binding.xiaomigateway.PacketReceived#enabled=true
+ * or in a custom .jfc file.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+final class JfrEvents {
+
+    private static final String CATEGORY = "openHAB";
+    private static final String SUBCATEGORY = "Xiaomi Gateway";
+
+    private JfrEvents() {
+    }
+
+    static void packetReceived(String sid, String cmd, String model, int size, long decodeTime, long processTime) {
+        PacketReceived event = new PacketReceived();
+        if (event.shouldCommit()) {
+            event.sid = sid;
+            event.cmd = cmd;
+            event.model = model;
+            event.size = size;
+            event.decodeTime = decodeTime;
+            event.processTime = processTime;
+            event.commit();
+        }
+    }
+
+    static void packetDispatched(String sid, String model, int items, int updates, long dispatchTime, long publishTime) {
+        PacketDispatched event = new PacketDispatched();
+        if (event.shouldCommit()) {
+            event.sid = sid;
+            event.model = model;
+            event.items = items;
+            event.updates = updates;
+            event.dispatchTime = dispatchTime;
+            event.publishTime = publishTime;
+            event.commit();
+        }
+    }
+
+    static void requestSent(String cmd, String sid, int priority, long queueTime, long sendTime) {
+        RequestSent event = new RequestSent();
+        if (event.shouldCommit()) {
+            event.cmd = cmd;
+            event.sid = sid;
+            event.priority = priority;
+            event.queueTime = queueTime;
+            event.sendTime = sendTime;
+            event.commit();
+        }
+    }
+
+    static void ackMatched(String cmd, String sid, long roundTrip) {
+        AckMatched event = new AckMatched();
+        if (event.shouldCommit()) {
+            event.cmd = cmd;
+            event.sid = sid;
+            event.roundTrip = roundTrip;
+            event.commit();
+        }
+    }
+
+    @Name("org.openhab.binding.xiaomigateway.PacketReceived")
+    @Label("Packet Received")
+    @Description("A packet received from the gateway has been decoded and processed")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Enabled(false)
+    @StackTrace(false)
+    static class PacketReceived extends Event {
+        @Label("Sid")
+        String sid;
+
+        @Label("Command")
+        String cmd;
+
+        @Label("Model")
+        String model;
+
+        @Label("Size")
+        int size;
+
+        @Label("Decode Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long decodeTime;
+
+        @Label("Process Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long processTime;
+    }
+
+    @Name("org.openhab.binding.xiaomigateway.PacketDispatched")
+    @Label("Packet Dispatched")
+    @Description("The data of a device has been dispatched to its bound items and the updates have been published")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Enabled(false)
+    @StackTrace(false)
+    static class PacketDispatched extends Event {
+        @Label("Sid")
+        String sid;
+
+        @Label("Model")
+        String model;
+
+        @Label("Items")
+        int items;
+
+        @Label("Updates")
+        int updates;
+
+        @Label("Dispatch Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long dispatchTime;
+
+        @Label("Publish Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long publishTime;
+    }
+
+    @Name("org.openhab.binding.xiaomigateway.RequestSent")
+    @Label("Request Sent")
+    @Description("A queued request has been sent to the gateway")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Enabled(false)
+    @StackTrace(false)
+    static class RequestSent extends Event {
+        @Label("Command")
+        String cmd;
+
+        @Label("Sid")
+        String sid;
+
+        @Label("Priority")
+        int priority;
+
+        @Label("Queue Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueTime;
+
+        @Label("Send Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long sendTime;
+    }
+
+    @Name("org.openhab.binding.xiaomigateway.AckMatched")
+    @Label("Ack Matched")
+    @Description("A read_ack/write_ack has been matched to its request")
+    @Category({CATEGORY, SUBCATEGORY})
+    @Enabled(false)
+    @StackTrace(false)
+    static class AckMatched extends Event {
+        @Label("Command")
+        String cmd;
+
+        @Label("Sid")
+        String sid;
+
+        @Label("Round Trip")
+        @Timespan(Timespan.MILLISECONDS)
+        long roundTrip;
+    }
+}
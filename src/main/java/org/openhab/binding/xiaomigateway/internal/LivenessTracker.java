@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Flags devices offline after a number of missed heartbeat periods. Every device (sid) has a deadline
+ * in a timing wheel which is pushed forward whenever the device sends a heartbeat or a report.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class LivenessTracker implements LivenessTrackerMBean {
+
+    interface Listener {
+        void onlineChanged(String sid, boolean online);
+    }
+
+    private static final long TICK = 1000;
+    private static final int WHEEL_SIZE = 16384;
+
+    private final TimingWheel<String> wheel;
+    private final Map<String, Boolean> status = new HashMap<String, Boolean>();
+    private final Listener listener;
+    private int missedHeartbeats;
+    private int offline = 0;
+
+    private final TimingWheel.ExpiryHandler<String> expiryHandler = new TimingWheel.ExpiryHandler<String>() {
+        @Override
+        public void expired(String sid) {
+            Boolean previous = status.put(sid, Boolean.FALSE);
+            if (!Boolean.FALSE.equals(previous)) {
+                offline++;
+                listener.onlineChanged(sid, false);
+            }
+        }
+    };
+
+    LivenessTracker(int missedHeartbeats, Listener listener) {
+        this.missedHeartbeats = missedHeartbeats;
+        this.listener = listener;
+        this.wheel = new TimingWheel<String>(TICK, WHEEL_SIZE, System.currentTimeMillis());
+    }
+
+    synchronized void setMissedHeartbeats(int missedHeartbeats) {
+        this.missedHeartbeats = missedHeartbeats;
+    }
+
+    /**
+     * Starts tracking a discovered device without changing its online state
+     */
+    synchronized void track(String sid, String model, long now) {
+        if (status.containsKey(sid) || wheel.contains(sid)) {
+            return;
+        }
+        wheel.schedule(sid, now + missedHeartbeats * getHeartbeatPeriod(model));
+    }
+
+    /**
+     * The device has sent a heartbeat or a report
+     */
+    synchronized void seen(String sid, String model, long now) {
+        wheel.schedule(sid, now + missedHeartbeats * getHeartbeatPeriod(model));
+        Boolean previous = status.put(sid, Boolean.TRUE);
+        if (!Boolean.TRUE.equals(previous)) {
+            if (Boolean.FALSE.equals(previous)) {
+                offline--;
+            }
+            listener.onlineChanged(sid, true);
+        }
+    }
+
+    synchronized void tick(long now) {
+        wheel.advance(now, expiryHandler);
+    }
+
+    /**
+     * Returns the last known state, null if the device has not reported yet
+     */
+    synchronized Boolean isOnline(String sid) {
+        return status.get(sid);
+    }
+
+    @Override
+    public synchronized int getOfflineCount() {
+        return offline;
+    }
+
+    synchronized void clear() {
+        wheel.clear();
+        status.clear();
+        offline = 0;
+    }
+
+    /**
+     * Heartbeat period of the model in ms, the gateway sends a heartbeat every 10 seconds,
+     * mains powered devices every 10 minutes and battery powered devices every 60 minutes
+     */
+    static long getHeartbeatPeriod(String model) {
+        if (model == null) {
+            return 3600000L;
+        }
+        switch (model) {
+            case "gateway":
+                return 10000L;
+            case "plug":
+            case "86plug":
+            case "ctrl_ln1":
+            case "ctrl_ln2":
+            case "ctrl_neutral1":
+            case "ctrl_neutral2":
+                return 600000L;
+            default:
+                return 3600000L;
+        }
+    }
+}
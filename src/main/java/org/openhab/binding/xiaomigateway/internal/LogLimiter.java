@@ -0,0 +1,150 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.slf4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limited logging for the packet path, so a misbehaving device cannot flood the log.
+ * Every message key (e.g. the format string) has a token bucket refilled with rate messages per minute
+ * holding at most rate messages, messages without a token are suppressed and reported once per minute
+ * as a summary per key.
+ * Debug traces of received packets can be sampled, only every n-th packet is logged.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class LogLimiter implements LogLimiterMBean {
+
+    private static final long MINUTE = 60000;
+
+    //keys beyond this share one bucket
+    private static final int MAX_KEYS = 256;
+    private static final String OTHER = "other messages";
+
+    private final Logger logger;
+    private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong sampled = new AtomicLong();
+
+    //messages per minute and key, 0 = unlimited
+    private volatile int rate = 10;
+    //log every n-th packet trace
+    private volatile int sample = 1;
+    private long lastSummary = System.currentTimeMillis();
+
+    LogLimiter(Logger logger) {
+        this.logger = logger;
+    }
+
+    void configure(int rate, int sample) {
+        this.rate = rate;
+        this.sample = Math.max(1, sample);
+    }
+
+    void error(String key, String format, Object... arguments) {
+        if (logger.isErrorEnabled() && allow(key)) {
+            logger.error(format, arguments);
+        }
+    }
+
+    void warn(String key, String format, Object... arguments) {
+        if (logger.isWarnEnabled() && allow(key)) {
+            logger.warn(format, arguments);
+        }
+    }
+
+    /**
+     * Logs an exception of the packet path keyed by its class
+     */
+    void error(Exception e) {
+        if (logger.isErrorEnabled() && allow(e.getClass().getName())) {
+            logger.error(e.toString());
+        }
+    }
+
+    /**
+     * Returns true for every n-th packet whose debug trace should be logged
+     */
+    boolean sample() {
+        int n = sample;
+        return n == 1 || sampled.incrementAndGet() % n == 0;
+    }
+
+    @Override
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    /**
+     * Logs the suppressed counts once per minute
+     */
+    synchronized void tick(long now) {
+        if (now - lastSummary < MINUTE) {
+            return;
+        }
+        lastSummary = now;
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            if (bucket.suppressed > 0) {
+                logger.warn("Suppressed {} log messages of: {}", bucket.suppressed, entry.getKey());
+                bucket.suppressed = 0;
+            }
+        }
+    }
+
+    synchronized void clear() {
+        buckets.clear();
+        suppressed.set(0);
+        sampled.set(0);
+    }
+
+    private synchronized boolean allow(String key) {
+        int limit = rate;
+        if (limit <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_KEYS) {
+                key = OTHER;
+                bucket = buckets.get(key);
+            }
+            if (bucket == null) {
+                bucket = new Bucket(limit, now);
+                buckets.put(key, bucket);
+            }
+        }
+        bucket.tokens = Math.min(limit, bucket.tokens + (double) (now - bucket.updated) * limit / MINUTE);
+        bucket.updated = now;
+        if (bucket.tokens >= 1) {
+            bucket.tokens--;
+            return true;
+        }
+        bucket.suppressed++;
+        suppressed.incrementAndGet();
+        return false;
+    }
+
+    private static class Bucket {
+        double tokens;
+        long updated;
+        long suppressed = 0;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+}
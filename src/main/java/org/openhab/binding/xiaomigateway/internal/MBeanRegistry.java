@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registers the MBeans of the binding components in JMX (e.g. jconsole) as
+ * org.openhab.binding.xiaomigateway:type=&lt;type&gt; and unregisters them all together
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class MBeanRegistry {
+
+    private static final String DOMAIN = "org.openhab.binding.xiaomigateway";
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(MBeanRegistry.class);
+
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    /**
+     * Registers the component with the attributes and operations of its MBean interface,
+     * an MBean left over from a previous activation is replaced
+     */
+    synchronized <T> void register(String type, T component, Class<T> mbeanInterface) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":type=" + type);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(component, mbeanInterface), name);
+            registered.add(name);
+        } catch (Exception e) {
+            logger.error("Cannot register {} MBean: {}", type, e.toString());
+        }
+    }
+
+    synchronized void unregisterAll() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                logger.error("Cannot unregister MBean {}: {}", name, e.toString());
+            }
+        }
+        registered.clear();
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of requests to the gateway serviced by a dedicated sender thread.
+ * Callers (the openHAB event bus, the receive thread, the refresh service) only enqueue a {@link Request},
+ * building the message, encrypting the key and sending the datagram happens on the sender thread.
+ * <p>
+ * Requests are sent by priority class, interactive writes before discovery before periodic reads,
+ * and all classes share one rate budget (token bucket) so polling bursts do not flood the gateway.
+ * A periodic read of a device which is still waiting in the queue is not queued again.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class OutboundQueue implements OutboundQueueMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(OutboundQueue.class);
+
+    static final int INTERACTIVE = 0;
+    static final int DISCOVERY = 1;
+    static final int PERIODIC = 2;
+    private static final int PRIORITIES = 3;
+
+    //requests which may be sent at once after an idle period
+    private static final int BURST = 5;
+
+    /**
+     * Builds and sends a request, called from the sender thread
+     */
+    interface RequestSender {
+        void send(Request request) throws Exception;
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final ArrayDeque<Request>[] queues;
+    private final Set<String> pendingReads = new HashSet<String>();
+    private final int capacity;
+    private final RequestSender sender;
+    private Thread thread;
+
+    //rate budget, requests per second, 0 = unlimited
+    private volatile int rate;
+    private double tokens = BURST;
+    private long lastRefill = System.nanoTime();
+
+    private final AtomicLong sentRequests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong droppedRequests = new AtomicLong();
+    private final AtomicLong skippedReads = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    OutboundQueue(int capacity, int rate, RequestSender sender) {
+        this.capacity = capacity;
+        this.rate = rate;
+        this.sender = sender;
+        this.queues = new ArrayDeque[PRIORITIES];
+        for (int i = 0; i < PRIORITIES; i++) {
+            queues[i] = new ArrayDeque<Request>();
+        }
+    }
+
+    void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    synchronized void start() {
+        if (thread != null && thread.isAlive()) {
+            return;
+        }
+        thread = new Thread(this::sendRequests, "XiaomiGateway sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        lock.lock();
+        try {
+            for (ArrayDeque<Request> queue : queues) {
+                queue.clear();
+            }
+            pendingReads.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enqueues the request without blocking
+     *
+     * @return false if the queue of its priority class is full and the request has been dropped
+     */
+    boolean offer(Request request) {
+        lock.lock();
+        try {
+            if (request.priority == PERIODIC && request.cmd.equals(Request.READ) && !pendingReads.add(request.sid)) {
+                //the previous read of the device has not been sent yet
+                skippedReads.incrementAndGet();
+                return true;
+            }
+            ArrayDeque<Request> queue = queues[request.priority];
+            if (queue.size() < capacity) {
+                queue.add(request);
+                notEmpty.signal();
+                return true;
+            }
+            if (request.priority == PERIODIC && request.cmd.equals(Request.READ)) {
+                pendingReads.remove(request.sid);
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (droppedRequests.incrementAndGet() % 100 == 1) {
+            logger.warn("Outbound queue is full, dropping {} request for sid: {} (dropped {} requests so far)", request.cmd, request.sid, droppedRequests.get());
+        }
+        return false;
+    }
+
+    @Override
+    public long getSentRequests() {
+        return sentRequests.get();
+    }
+
+    @Override
+    public long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    @Override
+    public long getDroppedRequests() {
+        return droppedRequests.get();
+    }
+
+    @Override
+    public long getSkippedReads() {
+        return skippedReads.get();
+    }
+
+    @Override
+    public int getPendingRequests() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (ArrayDeque<Request> queue : queues) {
+                size += queue.size();
+            }
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a token of the rate budget and takes the request with the highest priority
+     */
+    private Request take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                Request request = null;
+                for (ArrayDeque<Request> queue : queues) {
+                    if (!queue.isEmpty()) {
+                        request = queue.peek();
+                        break;
+                    }
+                }
+                if (request == null) {
+                    notEmpty.await();
+                    continue;
+                }
+                long wait = acquireToken();
+                if (wait > 0) {
+                    //a request of a higher priority may arrive in the meantime
+                    notEmpty.awaitNanos(wait);
+                    continue;
+                }
+                queues[request.priority].poll();
+                if (request.priority == PERIODIC && request.cmd.equals(Request.READ)) {
+                    pendingReads.remove(request.sid);
+                }
+                return request;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes one token of the rate budget
+     *
+     * @return 0 if the token has been taken, otherwise nanoseconds until a token is available
+     */
+    private long acquireToken() {
+        int currentRate = rate;
+        if (currentRate <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(BURST, tokens + (now - lastRefill) * currentRate / (double) TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / currentRate) + 1;
+    }
+
+    private void sendRequests() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Request request = take();
+                sender.send(request);
+                sentRequests.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                failedRequests.incrementAndGet();
+                logger.error(e.toString());
+            }
+        }
+    }
+
+    /**
+     * One request to the gateway, the message is built only when it is sent
+     */
+    static class Request {
+        static final String WHOIS = "whois";
+        static final String GET_ID_LIST = "get_id_list";
+        static final String READ = "read";
+        static final String WRITE = "write";
+        static final String WRITE_GATEWAY = "write_gateway";
+
+        final String cmd;
+        final String sid;
+        final String[] keys;
+        final Object[] values;
+        final int priority;
+        final long queuedAt = System.nanoTime();
+
+        Request(String cmd, String sid, String[] keys, Object[] values, int priority) {
+            this.cmd = cmd;
+            this.sid = sid;
+            this.keys = keys;
+            this.values = values;
+            this.priority = priority;
+        }
+
+        Request(String cmd, String sid, int priority) {
+            this(cmd, sid, null, null, priority);
+        }
+    }
+}
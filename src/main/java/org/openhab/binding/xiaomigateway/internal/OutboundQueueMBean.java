@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Counters of the requests to the gateway, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=Outbound
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface OutboundQueueMBean {
+
+    long getSentRequests();
+
+    long getFailedRequests();
+
+    long getDroppedRequests();
+
+    long getSkippedReads();
+
+    int getPendingRequests();
+}
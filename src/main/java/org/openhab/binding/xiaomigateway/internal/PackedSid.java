@@ -0,0 +1,65 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Packs a sid (lower case hex, e.g. 158d0001182814 or f0b429b3e2a1) into a long: the number of digits in the top byte
+ * and the hex value below, so sids differing only in leading zeros stay distinct. A packed sid is never 0.
+ * Sids longer than 14 digits or with other characters cannot be packed.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+final class PackedSid {
+
+    static final long NONE = 0;
+
+    private static final int MAX_DIGITS = 14;
+
+    private PackedSid() {
+    }
+
+    /**
+     * Returns the packed sid or NONE if the sid cannot be packed
+     */
+    static long pack(String sid) {
+        if (sid == null) {
+            return NONE;
+        }
+        int length = sid.length();
+        if (length == 0 || length > MAX_DIGITS) {
+            return NONE;
+        }
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = sid.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                return NONE;
+            }
+            value = value << 4 | digit;
+        }
+        return (long) length << 56 | value;
+    }
+
+    static String unpack(long packed) {
+        int length = (int) (packed >>> 56);
+        char[] chars = new char[length];
+        long value = packed;
+        for (int i = length - 1; i >= 0; i--) {
+            chars[i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+        return new String(chars);
+    }
+}
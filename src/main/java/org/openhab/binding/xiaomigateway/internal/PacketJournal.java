@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-size ring file of received datagrams, memory-mapped, in a compact binary format.
+ * <p>
+ * The file starts with a header (magic, version, head and tail position) followed by the data area.
+ * Each record is: int record length, long timestamp, short port, byte address length, address, payload.
+ * Positions are logical (ever increasing), a record may wrap around the end of the data area.
+ * When the data area is full the oldest records are dropped.
+ * A journal is replayed offline (see JournalReplay in the tests), never by the running binding.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class PacketJournal {
+
+    interface PacketHandler {
+        void handle(long timestamp, InetAddress address, int port, byte[] data, int length) throws Exception;
+    }
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(PacketJournal.class);
+
+    private static final int MAGIC = 0x58474a31; //XGJ1
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 32;
+    private static final int RECORD_HEADER_LENGTH = 4 + 8 + 2 + 1;
+    private static final int MAX_PACKET_LENGTH = 65535;
+    private static final int MAX_RECORD_LENGTH = RECORD_HEADER_LENGTH + 16 + MAX_PACKET_LENGTH;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    //view of the buffer used for bulk copies of the data area
+    private final ByteBuffer data;
+    private final long dataLength;
+    private long head;
+    private long tail;
+
+    private final byte[] scratch = new byte[RECORD_HEADER_LENGTH + 16];
+
+    private PacketJournal(RandomAccessFile file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+        this.data = buffer.duplicate();
+        this.dataLength = buffer.capacity() - HEADER_LENGTH;
+    }
+
+    /**
+     * Opens the journal file or creates a new one, a file of a different size is started from scratch
+     */
+    static PacketJournal open(File path, int size) throws IOException {
+        if (size < HEADER_LENGTH + RECORD_HEADER_LENGTH + MAX_PACKET_LENGTH) {
+            throw new IllegalArgumentException("Journal size must be at least " + (HEADER_LENGTH + RECORD_HEADER_LENGTH + MAX_PACKET_LENGTH) + " bytes");
+        }
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        boolean reuse = file.length() == size;
+        file.setLength(size);
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        PacketJournal journal = new PacketJournal(file, buffer);
+        if (reuse && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION && journal.isValid(buffer.getLong(8), buffer.getLong(16))) {
+            journal.head = buffer.getLong(8);
+            journal.tail = buffer.getLong(16);
+            //a torn write leaves a header pointing to records not fully written
+            if (!journal.hasValidRecords()) {
+                logger.warn("Corrupt records in packet journal {}, starting a new journal", path);
+                journal.reset();
+            }
+        } else {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            journal.writeHeader();
+        }
+        return journal;
+    }
+
+    synchronized void append(long timestamp, InetAddress address, int port, byte[] data, int offset, int length) {
+        byte[] addr = address != null ? address.getAddress() : new byte[0];
+        int recordLength = RECORD_HEADER_LENGTH + addr.length + length;
+        if (recordLength > dataLength) {
+            return;
+        }
+        //drop the oldest records to make room
+        while (head + recordLength - tail > dataLength) {
+            int oldest = readInt(tail);
+            if (!isValidRecord(tail, oldest)) {
+                logger.warn("Corrupt record of length {} at position {} of packet journal, starting a new journal", oldest, tail);
+                reset();
+                break;
+            }
+            tail += oldest;
+        }
+
+        int pos = 0;
+        pos = putInt(scratch, pos, recordLength);
+        pos = putLong(scratch, pos, timestamp);
+        scratch[pos++] = (byte) (port >> 8);
+        scratch[pos++] = (byte) port;
+        scratch[pos++] = (byte) addr.length;
+        System.arraycopy(addr, 0, scratch, pos, addr.length);
+        pos += addr.length;
+
+        write(head, scratch, 0, pos);
+        write(head + pos, data, offset, length);
+        head += recordLength;
+        writeHeader();
+    }
+
+    synchronized void close() {
+        try {
+            buffer.force();
+            file.close();
+        } catch (IOException e) {
+            //nothing to do
+        }
+    }
+
+    /**
+     * Feeds all journal records, oldest first, to the handler. The replay stops at the first corrupt or torn record
+     * (e.g. of a journal copied while being written).
+     *
+     * @param speed replay speed relative to the original timing (2 = twice as fast), 0 replays without delays
+     * @return number of replayed records
+     */
+    static int replay(File path, double speed, PacketHandler handler) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (file.length() < HEADER_LENGTH + RECORD_HEADER_LENGTH) {
+                throw new IOException("Not a packet journal: " + path);
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a packet journal: " + path);
+            }
+            PacketJournal journal = new PacketJournal(null, buffer);
+            long head = buffer.getLong(8);
+            long pos = buffer.getLong(16);
+            if (!journal.isValid(head, pos)) {
+                throw new IOException("Corrupt packet journal header: " + path);
+            }
+            byte[] record = new byte[MAX_RECORD_LENGTH];
+            long previous = 0;
+            int count = 0;
+            while (pos < head) {
+                int recordLength = journal.readInt(pos);
+                if (recordLength < RECORD_HEADER_LENGTH || recordLength > record.length || recordLength > head - pos) {
+                    logger.warn("Corrupt record of length {} at position {} of packet journal {}, replay stopped", recordLength, pos, path);
+                    break;
+                }
+                journal.read(pos, record, 0, recordLength);
+                long timestamp = getLong(record, 4);
+                int port = ((record[12] & 0xff) << 8) | (record[13] & 0xff);
+                int addrLength = record[14] & 0xff;
+                if ((addrLength != 0 && addrLength != 4 && addrLength != 16) || RECORD_HEADER_LENGTH + addrLength > recordLength) {
+                    logger.warn("Corrupt record address at position {} of packet journal {}, replay stopped", pos, path);
+                    break;
+                }
+                InetAddress address = addrLength > 0 ? InetAddress.getByAddress(copy(record, RECORD_HEADER_LENGTH, addrLength)) : null;
+                int dataOffset = RECORD_HEADER_LENGTH + addrLength;
+                byte[] data = copy(record, dataOffset, recordLength - dataOffset);
+
+                if (speed > 0 && previous > 0 && timestamp > previous) {
+                    Thread.sleep((long) ((timestamp - previous) / speed));
+                }
+                previous = timestamp;
+                handler.handle(timestamp, address, port, data, data.length);
+                count++;
+                pos += recordLength;
+            }
+            return count;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns true if the head and tail position read from the header describe a possible data area
+     */
+    private boolean isValid(long head, long tail) {
+        return tail >= 0 && head >= tail && head - tail <= dataLength;
+    }
+
+    /**
+     * Returns true if a record of the length fits between the position and the head
+     */
+    private boolean isValidRecord(long pos, int recordLength) {
+        return recordLength >= RECORD_HEADER_LENGTH && recordLength <= MAX_RECORD_LENGTH && recordLength <= head - pos;
+    }
+
+    /**
+     * Returns true if the record lengths lead from the tail exactly to the head
+     */
+    private boolean hasValidRecords() {
+        long pos = tail;
+        while (pos < head) {
+            int recordLength = readInt(pos);
+            if (!isValidRecord(pos, recordLength)) {
+                return false;
+            }
+            pos += recordLength;
+        }
+        return true;
+    }
+
+    private void reset() {
+        head = 0;
+        tail = 0;
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        buffer.putLong(8, head);
+        buffer.putLong(16, tail);
+    }
+
+    private int readInt(long pos) {
+        read(pos, scratch, 0, 4);
+        return ((scratch[0] & 0xff) << 24) | ((scratch[1] & 0xff) << 16) | ((scratch[2] & 0xff) << 8) | (scratch[3] & 0xff);
+    }
+
+    private void write(long pos, byte[] src, int offset, int length) {
+        int start = (int) (pos % dataLength);
+        int first = (int) Math.min(length, dataLength - start);
+        data.position(HEADER_LENGTH + start);
+        data.put(src, offset, first);
+        if (first < length) {
+            data.position(HEADER_LENGTH);
+            data.put(src, offset + first, length - first);
+        }
+    }
+
+    private void read(long pos, byte[] dst, int offset, int length) {
+        int start = (int) (pos % dataLength);
+        int first = (int) Math.min(length, dataLength - start);
+        data.position(HEADER_LENGTH + start);
+        data.get(dst, offset, first);
+        if (first < length) {
+            data.position(HEADER_LENGTH);
+            data.get(dst, offset + first, length - first);
+        }
+    }
+
+    private static int putInt(byte[] dst, int pos, int value) {
+        dst[pos] = (byte) (value >> 24);
+        dst[pos + 1] = (byte) (value >> 16);
+        dst[pos + 2] = (byte) (value >> 8);
+        dst[pos + 3] = (byte) value;
+        return pos + 4;
+    }
+
+    private static int putLong(byte[] dst, int pos, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dst[pos++] = (byte) (value >> (i * 8));
+        }
+        return pos;
+    }
+
+    private static long getLong(byte[] src, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (src[pos + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static byte[] copy(byte[] src, int offset, int length) {
+        byte[] dst = new byte[length];
+        System.arraycopy(src, offset, dst, 0, length);
+        return dst;
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the receive path including estimated packet loss. Loss is estimated from gaps
+ * in the gateway heartbeat cadence (one heartbeat every 10 seconds), unanswered reads are
+ * counted by the {@link RoundTripTracker}.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class PacketStatistics implements PacketStatisticsMBean {
+
+    static final long GATEWAY_HEARTBEAT_PERIOD = 10000;
+
+    private final AtomicLong receivedPackets = new AtomicLong();
+    private final AtomicLong truncatedPackets = new AtomicLong();
+    private final AtomicLong missedHeartbeats = new AtomicLong();
+
+    private final Map<String, Long> lastHeartbeats = new ConcurrentHashMap<String, Long>();
+
+    void packetReceived() {
+        receivedPackets.incrementAndGet();
+    }
+
+    void packetTruncated() {
+        truncatedPackets.incrementAndGet();
+    }
+
+    /**
+     * Counts the heartbeats missing since the previous heartbeat of the gateway
+     *
+     * @return number of missed heartbeats
+     */
+    long gatewayHeartbeat(String gatewaySid, long now) {
+        Long last = lastHeartbeats.put(gatewaySid, now);
+        if (last == null) {
+            return 0;
+        }
+        long missed = Math.round((double) (now - last) / GATEWAY_HEARTBEAT_PERIOD) - 1;
+        if (missed > 0) {
+            missedHeartbeats.addAndGet(missed);
+            return missed;
+        }
+        return 0;
+    }
+
+    @Override
+    public long getReceivedPackets() {
+        return receivedPackets.get();
+    }
+
+    @Override
+    public long getTruncatedPackets() {
+        return truncatedPackets.get();
+    }
+
+    @Override
+    public long getMissedHeartbeats() {
+        return missedHeartbeats.get();
+    }
+
+    void clear() {
+        lastHeartbeats.clear();
+    }
+}
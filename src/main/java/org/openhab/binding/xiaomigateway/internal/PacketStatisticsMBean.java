@@ -0,0 +1,25 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Counters of the received packets, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=Packets
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface PacketStatisticsMBean {
+
+    long getReceivedPackets();
+
+    long getTruncatedPackets();
+
+    long getMissedHeartbeats();
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schedules the periodic reads of the devices with a poll interval per model (polling profile),
+ * devices of models without a profile are polled with the default interval.
+ * The next read of every device is kept in a timing wheel, so a tick costs the same for thousands of devices.
+ * The first read of a device is spread over its interval to avoid bursts after discovery.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class PollScheduler {
+
+    interface Poller {
+        void poll(String sid);
+    }
+
+    private static final long TICK = 1000;
+    private static final int WHEEL_SIZE = 4096;
+
+    private final TimingWheel<String> wheel;
+    private final Map<String, String> models = new HashMap<String, String>();
+
+    //poll interval in ms per model, 0 = not polled
+    private Map<String, Long> profiles = new HashMap<String, Long>();
+    private long defaultInterval;
+
+    private Poller poller;
+    private long now;
+
+    private final TimingWheel.ExpiryHandler<String> expiryHandler = new TimingWheel.ExpiryHandler<String>() {
+        @Override
+        public void expired(String sid) {
+            long interval = getInterval(models.get(sid));
+            if (interval > 0) {
+                wheel.schedule(sid, now + interval);
+            }
+            poller.poll(sid);
+        }
+    };
+
+    PollScheduler(long defaultInterval) {
+        this.defaultInterval = defaultInterval;
+        this.wheel = new TimingWheel<String>(TICK, WHEEL_SIZE, System.currentTimeMillis());
+    }
+
+    /**
+     * Sets the poll intervals and reschedules all devices
+     *
+     * @param profiles poll interval in ms per model, 0 = not polled
+     */
+    synchronized void setProfiles(Map<String, Long> profiles, long defaultInterval, long now) {
+        this.profiles = new HashMap<String, Long>(profiles);
+        this.defaultInterval = defaultInterval;
+        for (Map.Entry<String, String> entry : models.entrySet()) {
+            schedule(entry.getKey(), entry.getValue(), now);
+        }
+    }
+
+    synchronized void add(String sid, String model, long now) {
+        if (models.containsKey(sid)) {
+            return;
+        }
+        models.put(sid, model);
+        schedule(sid, model, now);
+    }
+
+    synchronized void remove(String sid) {
+        models.remove(sid);
+        wheel.cancel(sid);
+    }
+
+    /**
+     * Polls the devices whose next read is due
+     */
+    synchronized void tick(long now, Poller poller) {
+        this.now = now;
+        this.poller = poller;
+        wheel.advance(now, expiryHandler);
+    }
+
+    synchronized int getPolledCount() {
+        return wheel.size();
+    }
+
+    synchronized void clear() {
+        wheel.clear();
+        models.clear();
+    }
+
+    private void schedule(String sid, String model, long now) {
+        long interval = getInterval(model);
+        if (interval <= 0) {
+            wheel.cancel(sid);
+            return;
+        }
+        //first read between a half and a full interval from now, spread by sid
+        long spread = interval / 2;
+        wheel.schedule(sid, now + interval - (spread > 0 ? (sid.hashCode() & Integer.MAX_VALUE) % spread : 0));
+    }
+
+    private long getInterval(String model) {
+        Long interval = model != null ? profiles.get(model) : null;
+        return interval != null ? interval : defaultInterval;
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aggregates plug power values of an item over consecutive windows aligned to the clock (e.g. every full 15 minutes)
+ * and reports one value per window when it closes. Plugs report load_power only when it changes,
+ * so the last value is held until the next one: mean and energy are weighted by time.
+ * <ul>
+ * <li>min, max: extremes within the window including the value held from the previous window</li>
+ * <li>mean: time weighted mean</li>
+ * <li>energy: load_power integrated over the window in Wh, for power_consumed the increase within the window</li>
+ * </ul>
+ * Windows without any change are reported with the held value, also the windows passed while no tick or value came
+ * (e.g. a busy scheduler or a suspended host), up to {@link #MAX_MISSED_WINDOWS} per item. Older missed windows are
+ * not reported and only counted.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class PowerAggregator implements PowerAggregatorMBean {
+
+    private static final double MS_PER_HOUR = 3600000;
+
+    static final int MAX_MISSED_WINDOWS = 96;
+
+    interface WindowListener {
+        void windowClosed(String itemName, double value);
+    }
+
+    private final Map<String, Window> windows = new HashMap<String, Window>();
+    private final WindowListener listener;
+    private long missedWindows = 0;
+    private long skippedWindows = 0;
+
+    PowerAggregator(WindowListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a value of the item, the item's window is closed first if the value belongs to a later one
+     *
+     * @param counter true for a cumulative value (power_consumed)
+     */
+    synchronized void add(String itemName, String function, long length, boolean counter, long timestamp, double value) {
+        Window window = windows.get(itemName);
+        if (window == null || !window.function.equals(function) || window.length != length) {
+            window = new Window(function, length, counter, timestamp);
+            windows.put(itemName, window);
+        } else if (timestamp >= window.end) {
+            close(itemName, window, timestamp);
+        }
+        window.add(timestamp, value);
+    }
+
+    /**
+     * Closes all windows ending before now
+     */
+    synchronized void tick(long now) {
+        for (Map.Entry<String, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            if (now >= window.end) {
+                close(entry.getKey(), window, now);
+            }
+        }
+    }
+
+    synchronized void remove(String itemName) {
+        windows.remove(itemName);
+    }
+
+    synchronized void clear() {
+        windows.clear();
+        missedWindows = 0;
+        skippedWindows = 0;
+    }
+
+    synchronized int size() {
+        return windows.size();
+    }
+
+    @Override
+    public synchronized long getMissedWindows() {
+        return missedWindows;
+    }
+
+    @Override
+    public synchronized long getSkippedWindows() {
+        return skippedWindows;
+    }
+
+    /**
+     * Closes the window and every later window ending before now
+     */
+    private void close(String itemName, Window window, long now) {
+        report(itemName, window);
+        long skip = Math.max(0, (now - window.end) / window.length - MAX_MISSED_WINDOWS);
+        skippedWindows += skip;
+        window.next(skip);
+        while (now >= window.end) {
+            //passed without a tick, only the held value can be in it
+            missedWindows++;
+            report(itemName, window);
+            window.next(0);
+        }
+    }
+
+    private void report(String itemName, Window window) {
+        double value = window.close();
+        if (!Double.isNaN(value)) {
+            listener.windowClosed(itemName, value);
+        }
+    }
+
+    private static class Window {
+        final String function;
+        final long length;
+        final boolean counter;
+
+        long start;
+        long end;
+
+        //value held since lastTimestamp
+        boolean hasLast = false;
+        double last;
+        long lastTimestamp;
+
+        //statistics of the current window
+        double min;
+        double max;
+        double first = Double.NaN;
+        double integral = 0;
+        long covered = 0;
+
+        Window(String function, long length, boolean counter, long timestamp) {
+            this.function = function;
+            this.length = length;
+            this.counter = counter;
+            this.start = timestamp - timestamp % length;
+            this.end = start + length;
+        }
+
+        void add(long timestamp, double value) {
+            integrate(timestamp);
+            if (!hasLast || value < min) {
+                min = value;
+            }
+            if (!hasLast || value > max) {
+                max = value;
+            }
+            if (Double.isNaN(first)) {
+                first = value;
+            }
+            hasLast = true;
+            last = value;
+            lastTimestamp = timestamp;
+        }
+
+        double close() {
+            integrate(end);
+            if (!hasLast) {
+                return Double.NaN;
+            }
+            switch (function) {
+                case "min":
+                    return min;
+                case "max":
+                    return max;
+                case "mean":
+                    return covered > 0 ? integral / covered : last;
+                case "energy":
+                    return counter ? last - first : integral / MS_PER_HOUR;
+                default:
+                    return Double.NaN;
+            }
+        }
+
+        /**
+         * Starts the window following the closed one after skipping the given number of windows,
+         * carrying the held value over
+         */
+        void next(long skip) {
+            start = end + skip * length;
+            end = start + length;
+            integral = 0;
+            covered = 0;
+            if (hasLast) {
+                min = last;
+                max = last;
+                first = last;
+                lastTimestamp = start;
+            } else {
+                first = Double.NaN;
+            }
+        }
+
+        private void integrate(long upTo) {
+            if (!hasLast) {
+                return;
+            }
+            long from = Math.max(lastTimestamp, start);
+            long to = Math.min(upTo, end);
+            if (to > from) {
+                integral += last * (to - from);
+                covered += to - from;
+            }
+            lastTimestamp = Math.max(lastTimestamp, to);
+        }
+    }
+}
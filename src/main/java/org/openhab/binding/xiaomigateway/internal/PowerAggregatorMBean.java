@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Aggregation windows closed late, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=Aggregation
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface PowerAggregatorMBean {
+
+    /**
+     * Windows passed without a tick or value, reported late with the held value
+     */
+    long getMissedWindows();
+
+    /**
+     * Windows passed beyond the catch-up limit, not reported
+     */
+    long getSkippedWindows();
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the round trip time between a read/write sent to the gateway and its read_ack/write_ack,
+ * matched by sid. Keeps a latency histogram per device and one for all devices.
+ * An ack arriving later than the timeout (or without a request) is not counted.
+ * The outstanding reads are also the base of the read counters: a read still unanswered after the timeout
+ * when the next read of the device is sent counts as a lost read_ack.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class RoundTripTracker implements RoundTripTrackerMBean {
+
+    static final long TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+    private final Map<String, Long> pendingReads = new ConcurrentHashMap<String, Long>();
+    private final Map<String, Long> pendingWrites = new ConcurrentHashMap<String, Long>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    private final AtomicLong readRequests = new AtomicLong();
+    private final AtomicLong readAcks = new AtomicLong();
+    private final AtomicLong lostReadAcks = new AtomicLong();
+
+    void readSent(String sid, long nanoTime) {
+        readRequests.incrementAndGet();
+        Long previous = pendingReads.put(sid, nanoTime);
+        if (previous != null && nanoTime - previous > TIMEOUT) {
+            lostReadAcks.incrementAndGet();
+        }
+    }
+
+    void writeSent(String sid, long nanoTime) {
+        pendingWrites.put(sid, nanoTime);
+    }
+
+    /**
+     * @return the round trip time in ms or -1 if there is no matching read
+     */
+    long readAcked(String sid, long nanoTime) {
+        readAcks.incrementAndGet();
+        return acked(pendingReads, sid, nanoTime);
+    }
+
+    /**
+     * @return the round trip time in ms or -1 if there is no matching write
+     */
+    long writeAcked(String sid, long nanoTime) {
+        return acked(pendingWrites, sid, nanoTime);
+    }
+
+    @Override
+    public long getReadRequests() {
+        return readRequests.get();
+    }
+
+    @Override
+    public long getReadAcks() {
+        return readAcks.get();
+    }
+
+    @Override
+    public long getLostReadAcks() {
+        return lostReadAcks.get();
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return total.getCount();
+    }
+
+    @Override
+    public long getRoundTripP50() {
+        return total.getPercentile(50);
+    }
+
+    @Override
+    public long getRoundTripP90() {
+        return total.getPercentile(90);
+    }
+
+    @Override
+    public long getRoundTripP99() {
+        return total.getPercentile(99);
+    }
+
+    @Override
+    public long getRoundTripMax() {
+        return total.getMax();
+    }
+
+    @Override
+    public String[] getDeviceRoundTrips() {
+        Map<String, LatencyHistogram> sorted = new TreeMap<String, LatencyHistogram>(histograms);
+        String[] lines = new String[sorted.size()];
+        int i = 0;
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            lines[i++] = entry.getKey() + " count: " + histogram.getCount() + " p50: " + histogram.getPercentile(50)
+                    + " p90: " + histogram.getPercentile(90) + " p99: " + histogram.getPercentile(99) + " max: " + histogram.getMax();
+        }
+        return lines;
+    }
+
+    @Override
+    public long getDeviceRoundTrip(String sid, double percentile) {
+        LatencyHistogram histogram = histograms.get(sid);
+        return histogram != null ? histogram.getPercentile(percentile) : -1;
+    }
+
+    @Override
+    public void resetRoundTrips() {
+        clear();
+    }
+
+    void clear() {
+        pendingReads.clear();
+        pendingWrites.clear();
+        histograms.clear();
+        total.clear();
+    }
+
+    private long acked(Map<String, Long> pending, String sid, long nanoTime) {
+        if (sid == null) {
+            return -1;
+        }
+        Long sent = pending.remove(sid);
+        if (sent == null || nanoTime - sent > TIMEOUT) {
+            return -1;
+        }
+        long rtt = TimeUnit.NANOSECONDS.toMillis(nanoTime - sent);
+        LatencyHistogram histogram = histograms.get(sid);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(sid, histogram);
+        }
+        histogram.record(rtt);
+        total.record(rtt);
+        return rtt;
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Reads and round trip times, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=RoundTrips
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface RoundTripTrackerMBean {
+
+    long getReadRequests();
+
+    long getReadAcks();
+
+    long getLostReadAcks();
+
+    /**
+     * Round trip times in ms between a read/write and its ack, over all devices
+     */
+    long getRoundTrips();
+
+    long getRoundTripP50();
+
+    long getRoundTripP90();
+
+    long getRoundTripP99();
+
+    long getRoundTripMax();
+
+    /**
+     * Round trip count and percentiles of every device, one line per sid
+     */
+    String[] getDeviceRoundTrips();
+
+    /**
+     * Returns the round trip time in ms of the device at the percentile (0-100) or -1 if not measured
+     */
+    long getDeviceRoundTrip(String sid, double percentile);
+
+    void resetRoundTrips();
+}
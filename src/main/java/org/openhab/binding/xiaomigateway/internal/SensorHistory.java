@@ -0,0 +1,351 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.openhab.binding.xiaomigateway.XiaomiSensorHistory;
+
+/**
+ * In-memory history of one numeric device value (e.g. temperature or load_power of a single sid).
+ * Raw samples are kept in a primitive ring buffer of timestamps and values scaled by {@link #SCALE},
+ * every sample is also folded into min/max/avg buckets of coarser tiers, so longer windows can still be
+ * answered once the raw samples have been overwritten.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class SensorHistory {
+
+    /**
+     * values are stored as long with two decimal places
+     */
+    public static final int SCALE = 100;
+
+    public static final int RAW_CAPACITY = 720;
+
+    public static final int TIER_MINUTE = 0;
+    public static final int TIER_QUARTER = 1;
+
+    private static final long MINUTE = 60000L;
+
+    private final long[] times = new long[RAW_CAPACITY];
+    private final long[] values = new long[RAW_CAPACITY];
+    private int head = 0;
+    private int count = 0;
+
+    //1 minute buckets for 4 hours, 15 minutes buckets for 2 days
+    private final Tier[] tiers = new Tier[]{new Tier(MINUTE, 240), new Tier(15 * MINUTE, 192)};
+
+    /**
+     * Records a new sample. A sample with the same or an older timestamp than the last one is ignored,
+     * which makes it safe to record the same packet from several items.
+     *
+     * @return true if the sample has been recorded
+     */
+    public synchronized boolean add(long timestamp, double value) {
+        if (count > 0 && timestamp <= times[last()]) {
+            return false;
+        }
+        long scaled = Math.round(value * SCALE);
+        times[head] = timestamp;
+        values[head] = scaled;
+        head = (head + 1) % RAW_CAPACITY;
+        if (count < RAW_CAPACITY) {
+            count++;
+        }
+        for (Tier tier : tiers) {
+            tier.add(timestamp, scaled);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long getLastTimestamp() {
+        return count > 0 ? times[last()] : 0;
+    }
+
+    public synchronized double getLastValue() {
+        return count > 0 ? (double) values[last()] / SCALE : Double.NaN;
+    }
+
+    public synchronized double getMinimum(long from, long to) {
+        if (coversRaw(from)) {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (times[idx] >= from && times[idx] <= to && values[idx] < min) {
+                    min = values[idx];
+                }
+            }
+            return min == Long.MAX_VALUE ? Double.NaN : (double) min / SCALE;
+        }
+        return getTier(from).minimum(from, to);
+    }
+
+    public synchronized double getMaximum(long from, long to) {
+        if (coversRaw(from)) {
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (times[idx] >= from && times[idx] <= to && values[idx] > max) {
+                    max = values[idx];
+                }
+            }
+            return max == Long.MIN_VALUE ? Double.NaN : (double) max / SCALE;
+        }
+        return getTier(from).maximum(from, to);
+    }
+
+    public synchronized double getAverage(long from, long to) {
+        if (coversRaw(from)) {
+            long sum = 0;
+            int n = 0;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (times[idx] >= from && times[idx] <= to) {
+                    sum += values[idx];
+                    n++;
+                }
+            }
+            return n == 0 ? Double.NaN : (double) sum / n / SCALE;
+        }
+        return getTier(from).average(from, to);
+    }
+
+    /**
+     * Returns the rate of change per minute between the first and the last sample of the window
+     * or NaN if there are less than two samples.
+     */
+    public synchronized double getRateOfChange(long from, long to) {
+        if (coversRaw(from)) {
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (times[idx] >= from && times[idx] <= to) {
+                    if (first < 0) {
+                        first = idx;
+                    }
+                    last = idx;
+                }
+            }
+            if (first < 0 || first == last) {
+                return Double.NaN;
+            }
+            return (double) (values[last] - values[first]) / SCALE * MINUTE / (times[last] - times[first]);
+        }
+        return getTier(from).rateOfChange(from, to);
+    }
+
+    /**
+     * Copies the raw samples of the window into the given arrays.
+     *
+     * @return number of copied samples
+     */
+    public synchronized int getSamples(long from, long to, long[] timestamps, double[] samples) {
+        int n = 0;
+        for (int i = 0; i < count && n < timestamps.length && n < samples.length; i++) {
+            int idx = index(i);
+            if (times[idx] >= from && times[idx] <= to) {
+                timestamps[n] = times[idx];
+                samples[n] = (double) values[idx] / SCALE;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Returns a copy of the raw samples and the aggregates of the window, taken under one lock
+     */
+    public synchronized XiaomiSensorHistory getSnapshot(String sid, String event, long from, long to) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int idx = index(i);
+            if (times[idx] >= from && times[idx] <= to) {
+                n++;
+            }
+        }
+        long[] timestamps = new long[n];
+        double[] samples = new double[n];
+        getSamples(from, to, timestamps, samples);
+        return new XiaomiSensorHistory(sid, event, from, to, getMinimum(from, to), getMaximum(from, to),
+                getAverage(from, to), getRateOfChange(from, to), timestamps, samples);
+    }
+
+    /**
+     * Copies the downsampled buckets of the given tier ({@link #TIER_MINUTE} or {@link #TIER_QUARTER})
+     * into the given arrays.
+     *
+     * @return number of copied buckets
+     */
+    public synchronized int getDownsampled(int tier, long from, long to, long[] timestamps, double[] minimum,
+                                           double[] maximum, double[] average) {
+        return tiers[tier].copy(from, to, timestamps, minimum, maximum, average);
+    }
+
+    public synchronized void clear() {
+        head = 0;
+        count = 0;
+        for (Tier tier : tiers) {
+            tier.clear();
+        }
+    }
+
+    private boolean coversRaw(long from) {
+        return count > 0 && (count < RAW_CAPACITY || times[index(0)] <= from);
+    }
+
+    private Tier getTier(long from) {
+        for (Tier tier : tiers) {
+            if (tier.covers(from)) {
+                return tier;
+            }
+        }
+        return tiers[tiers.length - 1];
+    }
+
+    private int last() {
+        return (head - 1 + RAW_CAPACITY) % RAW_CAPACITY;
+    }
+
+    //i-th oldest sample
+    private int index(int i) {
+        return (head - count + i + RAW_CAPACITY) % RAW_CAPACITY;
+    }
+
+    private static class Tier {
+        private final long width;
+        private final long[] starts;
+        private final long[] mins;
+        private final long[] maxs;
+        private final long[] sums;
+        private final int[] counts;
+        private int head = 0;
+        private int count = 0;
+
+        Tier(long width, int capacity) {
+            this.width = width;
+            starts = new long[capacity];
+            mins = new long[capacity];
+            maxs = new long[capacity];
+            sums = new long[capacity];
+            counts = new int[capacity];
+        }
+
+        void add(long timestamp, long value) {
+            long start = timestamp - timestamp % width;
+            int last = (head - 1 + starts.length) % starts.length;
+            if (count > 0 && starts[last] == start) {
+                mins[last] = Math.min(mins[last], value);
+                maxs[last] = Math.max(maxs[last], value);
+                sums[last] += value;
+                counts[last]++;
+                return;
+            }
+            starts[head] = start;
+            mins[head] = value;
+            maxs[head] = value;
+            sums[head] = value;
+            counts[head] = 1;
+            head = (head + 1) % starts.length;
+            if (count < starts.length) {
+                count++;
+            }
+        }
+
+        boolean covers(long from) {
+            return count > 0 && (count < starts.length || starts[index(0)] <= from);
+        }
+
+        double minimum(long from, long to) {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (inWindow(idx, from, to) && mins[idx] < min) {
+                    min = mins[idx];
+                }
+            }
+            return min == Long.MAX_VALUE ? Double.NaN : (double) min / SCALE;
+        }
+
+        double maximum(long from, long to) {
+            long max = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (inWindow(idx, from, to) && maxs[idx] > max) {
+                    max = maxs[idx];
+                }
+            }
+            return max == Long.MIN_VALUE ? Double.NaN : (double) max / SCALE;
+        }
+
+        double average(long from, long to) {
+            long sum = 0;
+            long n = 0;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (inWindow(idx, from, to)) {
+                    sum += sums[idx];
+                    n += counts[idx];
+                }
+            }
+            return n == 0 ? Double.NaN : (double) sum / n / SCALE;
+        }
+
+        double rateOfChange(long from, long to) {
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < count; i++) {
+                int idx = index(i);
+                if (inWindow(idx, from, to)) {
+                    if (first < 0) {
+                        first = idx;
+                    }
+                    last = idx;
+                }
+            }
+            if (first < 0 || first == last) {
+                return Double.NaN;
+            }
+            double delta = (double) sums[last] / counts[last] - (double) sums[first] / counts[first];
+            return delta / SCALE * MINUTE / (starts[last] - starts[first]);
+        }
+
+        int copy(long from, long to, long[] timestamps, double[] minimum, double[] maximum, double[] average) {
+            int n = 0;
+            for (int i = 0; i < count && n < timestamps.length; i++) {
+                int idx = index(i);
+                if (inWindow(idx, from, to)) {
+                    timestamps[n] = starts[idx];
+                    minimum[n] = (double) mins[idx] / SCALE;
+                    maximum[n] = (double) maxs[idx] / SCALE;
+                    average[n] = (double) sums[idx] / counts[idx] / SCALE;
+                    n++;
+                }
+            }
+            return n;
+        }
+
+        void clear() {
+            head = 0;
+            count = 0;
+        }
+
+        private boolean inWindow(int idx, long from, long to) {
+            return starts[idx] + width > from && starts[idx] <= to;
+        }
+
+        private int index(int i) {
+            return (head - count + i + starts.length) % starts.length;
+        }
+    }
+}
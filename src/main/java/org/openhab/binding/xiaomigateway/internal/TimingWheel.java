@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashed timing wheel of keyed deadlines. Scheduling, rescheduling and cancelling a key is O(1)
+ * (the node of a key is reused), a tick only visits the entries of its own slot.
+ * Deadlines further away than the wheel span simply stay in their slot for more rounds.
+ * Not thread safe, callers synchronize.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class TimingWheel<K> {
+
+    interface ExpiryHandler<K> {
+        void expired(K key);
+    }
+
+    private final long tickDuration;
+    private final long startTime;
+    private final Node<K>[] slots;
+    private final int mask;
+    private final Map<K, Node<K>> nodes = new HashMap<K, Node<K>>();
+    private long currentTick = 0;
+
+    /**
+     * @param tickDuration tick length in ms
+     * @param wheelSize    number of slots, rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickDuration, int wheelSize, long startTime) {
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        this.tickDuration = tickDuration;
+        this.startTime = startTime;
+        this.slots = new Node[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Schedules the key to expire at the deadline (ms), replaces a previous deadline of the key
+     *
+     * @return true if the key was already scheduled
+     */
+    boolean schedule(K key, long deadline) {
+        long tick = (deadline - startTime + tickDuration - 1) / tickDuration;
+        if (tick <= currentTick) {
+            tick = currentTick + 1;
+        }
+        Node<K> node = nodes.get(key);
+        boolean scheduled = node != null;
+        if (scheduled) {
+            unlink(node);
+        } else {
+            node = new Node<K>(key);
+            nodes.put(key, node);
+        }
+        node.tick = tick;
+        link(node);
+        return scheduled;
+    }
+
+    boolean cancel(K key) {
+        Node<K> node = nodes.remove(key);
+        if (node == null) {
+            return false;
+        }
+        unlink(node);
+        return true;
+    }
+
+    boolean contains(K key) {
+        return nodes.containsKey(key);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    void clear() {
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = null;
+        }
+        nodes.clear();
+    }
+
+    /**
+     * Processes all ticks up to now and passes the expired keys to the handler
+     */
+    void advance(long now, ExpiryHandler<K> handler) {
+        long nowTick = (now - startTime) / tickDuration;
+        while (currentTick < nowTick) {
+            currentTick++;
+            Node<K> node = slots[(int) (currentTick & mask)];
+            while (node != null) {
+                Node<K> next = node.next;
+                if (node.tick <= currentTick) {
+                    unlink(node);
+                    nodes.remove(node.key);
+                    handler.expired(node.key);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private void link(Node<K> node) {
+        int slot = (int) (node.tick & mask);
+        node.prev = null;
+        node.next = slots[slot];
+        if (node.next != null) {
+            node.next.prev = node;
+        }
+        slots[slot] = node;
+    }
+
+    private void unlink(Node<K> node) {
+        if (node.prev != null) {
+            node.prev.next = node.next;
+        } else {
+            slots[(int) (node.tick & mask)] = node.next;
+        }
+        if (node.next != null) {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static class Node<K> {
+        final K key;
+        long tick;
+        Node<K> prev;
+        Node<K> next;
+
+        Node(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Suppresses numeric item updates within a deadband (delta) around the last published value
+ * or within a minimum interval after the last published update.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class UpdateFilter {
+
+    private final Map<String, Published> published = new ConcurrentHashMap<String, Published>();
+
+    /**
+     * Returns true if the value should be published and remembers it as the last published value
+     *
+     * @param delta       minimal absolute change against the last published value, 0 disables the deadband
+     * @param minInterval minimal time in ms between two published values, 0 disables the interval
+     */
+    boolean accept(String itemName, double value, double delta, long minInterval, long timestamp) {
+        if (delta <= 0 && minInterval <= 0) {
+            return true;
+        }
+        Published last = published.get(itemName);
+        if (last == null) {
+            last = new Published();
+            published.put(itemName, last);
+        } else {
+            if (Math.abs(value - last.value) < delta) {
+                return false;
+            }
+            if (timestamp - last.timestamp < minInterval) {
+                return false;
+            }
+        }
+        last.value = value;
+        last.timestamp = timestamp;
+        return true;
+    }
+
+    void remove(String itemName) {
+        published.remove(itemName);
+    }
+
+    void clear() {
+        published.clear();
+    }
+
+    private static class Published {
+        double value;
+        long timestamp;
+    }
+}
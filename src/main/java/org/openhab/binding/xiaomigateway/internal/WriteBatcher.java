@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Groups device writes arriving within a short window (e.g. a rule switching ten plugs) into one batch.
+ * The writes of a batch are handed to the outbound queue together, which paces them at the gateway rate,
+ * and each write is tracked until its write_ack. Only writes without an ack (or with an error ack)
+ * are sent again, at most the configured number of retries. The gateway acks writes per device, so all writes
+ * to one device are merged into a single write (e.g. channel_0 and channel_1 of a wall switch), a newer value
+ * of the same key replaces the older one.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class WriteBatcher implements WriteBatcherMBean {
+
+    private static final Logger logger =
+            LoggerFactory.getLogger(WriteBatcher.class);
+
+    private static final long CHECK_INTERVAL = 100;
+
+    //a write not sent within this time (dropped by the outbound queue or failed to send) counts as not acked
+    private static final long SEND_TIMEOUT = 10000;
+
+    interface Sender {
+        void send(Write write);
+    }
+
+    private final Sender sender;
+    private ScheduledExecutorService scheduler;
+
+    private long window = 50;
+    private long ackTimeout = 1000;
+    private int retries = 2;
+
+    //writes of the batch being collected and writes waiting for their write_ack, one merged write per sid
+    private final Map<String, Write> collecting = new LinkedHashMap<String, Write>();
+    private final Map<String, Write> pending = new LinkedHashMap<String, Write>();
+    private boolean checking = false;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    WriteBatcher(Sender sender) {
+        this.sender = sender;
+    }
+
+    synchronized void configure(long window, long ackTimeout, int retries) {
+        this.window = window;
+        this.ackTimeout = ackTimeout;
+        this.retries = retries;
+    }
+
+    synchronized void start(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    synchronized void stop() {
+        scheduler = null;
+        collecting.clear();
+        pending.clear();
+        checking = false;
+    }
+
+    /**
+     * Adds a write to the current batch, the first write of a batch opens its window
+     */
+    synchronized void add(String sid, String[] keys, Object[] values) {
+        Write write = new Write(sid, keys, values);
+        boolean first = collecting.isEmpty();
+        Write older = collecting.get(sid);
+        collecting.put(sid, older != null ? older.merge(write) : write);
+        if (scheduler == null || window <= 0) {
+            flush();
+            return;
+        }
+        if (first) {
+            schedule(this::flush, window);
+        }
+    }
+
+    /**
+     * The write has been sent to the gateway, its ack timeout starts now
+     */
+    synchronized void sent(String sid, long now) {
+        Write write = pending.get(sid);
+        if (write != null && write.sentAt == 0) {
+            write.sentAt = now;
+        }
+    }
+
+    /**
+     * A write_ack of the device has been received
+     */
+    synchronized void acked(String sid, boolean success) {
+        Write write = pending.get(sid);
+        if (write == null) {
+            return;
+        }
+        if (success) {
+            pending.remove(sid);
+            acknowledged.incrementAndGet();
+        } else {
+            retry(write, "error ack");
+        }
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public long getAcknowledged() {
+        return acknowledged.get();
+    }
+
+    @Override
+    public long getRetried() {
+        return retried.get();
+    }
+
+    @Override
+    public long getFailed() {
+        return failed.get();
+    }
+
+    @Override
+    public synchronized int getPending() {
+        return collecting.size() + pending.size();
+    }
+
+    private synchronized void flush() {
+        if (collecting.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        if (collecting.size() > 1) {
+            logger.debug("Sending batch of {} writes", collecting.size());
+        }
+        List<Write> batch = new ArrayList<Write>(collecting.values());
+        collecting.clear();
+        for (Write write : batch) {
+            //the keys of a write of the device still waiting for its ack are sent again with the newer ones
+            Write older = pending.get(write.sid);
+            if (older != null) {
+                write = older.merge(write);
+            }
+            pending.put(write.sid, write);
+            send(write);
+        }
+        startChecking();
+    }
+
+    private synchronized void checkAcks() {
+        long now = System.currentTimeMillis();
+        List<Write> expired = new ArrayList<Write>();
+        for (Write write : pending.values()) {
+            if (write.sentAt > 0 ? now - write.sentAt >= ackTimeout : now - write.queuedAt >= SEND_TIMEOUT) {
+                expired.add(write);
+            }
+        }
+        for (Write write : expired) {
+            retry(write, "no ack");
+        }
+        if (pending.isEmpty() || scheduler == null) {
+            checking = false;
+        } else {
+            schedule(this::checkAcks, CHECK_INTERVAL);
+        }
+    }
+
+    private void retry(Write write, String reason) {
+        if (write.attempts > retries) {
+            pending.remove(write.sid);
+            failed.incrementAndGet();
+            logger.warn("Write to device - sid: {} failed after {} attempts ({})", write.sid, write.attempts, reason);
+            return;
+        }
+        retried.incrementAndGet();
+        logger.debug("Retrying write to device - sid: {} ({})", write.sid, reason);
+        send(write);
+    }
+
+    private void send(Write write) {
+        write.attempts++;
+        write.queuedAt = System.currentTimeMillis();
+        write.sentAt = 0;
+        sender.send(write);
+    }
+
+    private void startChecking() {
+        if (checking || scheduler == null || pending.isEmpty()) {
+            if (scheduler == null) {
+                //not tracked without a scheduler
+                pending.clear();
+            }
+            return;
+        }
+        checking = true;
+        schedule(this::checkAcks, CHECK_INTERVAL);
+    }
+
+    private void schedule(Runnable task, long delay) {
+        try {
+            scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            logger.debug("Cannot schedule write batch task: {}", e.toString());
+        }
+    }
+
+    /**
+     * One write to a device
+     */
+    static class Write {
+        final String sid;
+        final String[] keys;
+        final Object[] values;
+        int attempts = 0;
+        long queuedAt = 0;
+        long sentAt = 0;
+
+        Write(String sid, String[] keys, Object[] values) {
+            this.sid = sid;
+            this.keys = keys;
+            this.values = values;
+        }
+
+        /**
+         * Returns a new write with the keys of both writes, the values of the newer write win
+         */
+        Write merge(Write newer) {
+            Map<String, Object> merged = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < keys.length; i++) {
+                merged.put(keys[i], values[i]);
+            }
+            for (int i = 0; i < newer.keys.length; i++) {
+                merged.put(newer.keys[i], newer.values[i]);
+            }
+            return new Write(sid, merged.keySet().toArray(new String[merged.size()]), merged.values().toArray());
+        }
+    }
+}
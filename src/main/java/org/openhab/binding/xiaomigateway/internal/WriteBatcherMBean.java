@@ -0,0 +1,29 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+/**
+ * Counters of the device writes, registered in JMX as
+ * org.openhab.binding.xiaomigateway:type=Writes
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public interface WriteBatcherMBean {
+
+    long getBatches();
+
+    long getAcknowledged();
+
+    long getRetried();
+
+    long getFailed();
+
+    int getPending();
+}
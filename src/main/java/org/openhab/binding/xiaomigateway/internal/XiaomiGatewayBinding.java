@@ -9,14 +9,20 @@
 package org.openhab.binding.xiaomigateway.internal;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import org.apache.commons.lang.StringUtils;
+import org.openhab.binding.xiaomigateway.XiaomiDeviceState;
 import org.openhab.binding.xiaomigateway.XiaomiGatewayBindingProvider;
+import org.openhab.binding.xiaomigateway.XiaomiGatewayStateService;
+import org.openhab.binding.xiaomigateway.XiaomiSensorHistory;
 import org.openhab.binding.xiaomigateway.model.GatewayDataResponse;
 import org.openhab.binding.xiaomigateway.model.GatewayResponse;
 import org.openhab.core.binding.AbstractActiveBinding;
+import org.openhab.core.binding.BindingProvider;
+import org.openhab.core.events.EventPublisher;
 import org.openhab.core.items.ItemNotFoundException;
 import org.openhab.core.items.ItemRegistry;
 import org.openhab.core.library.types.*;
@@ -27,12 +33,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.*;
+import java.io.File;
 import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -42,38 +56,119 @@ import java.util.Map;
  * @author Ondrej Pecta
  * @since 1.9.0
  */
-public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBindingProvider> {
+public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBindingProvider> implements XiaomiGatewayStateService {
 
-    private final int BUFFER_LENGTH = 1024;
+    private final int EVENT_QUEUE_CAPACITY = 1024;
+    private final int OUTBOUND_QUEUE_CAPACITY = 256;
     //private final int DEST_PORT = 9898;
     private final String MCAST_ADDR = "224.0.0.50";
     private final int MCAST_PORT = 4321;
-    private String gatewayIP = "";
-    private int dest_port = 9898;
+    private volatile String gatewayIP = "";
+    private volatile int dest_port = 9898;
+    //local port the gateway reports are received on, 0 binds an ephemeral port
+    private int receivePort = 9898;
+    private InetAddress gatewayAddress = null;
     private MulticastSocket socket = null;
 
+    //Socket receive buffer (SO_RCVBUF) and maximal datagram size in bytes
+    private int receiveBufferSize = 262144;
+    private int datagramSize = 8192;
+
     private Thread thread;
 
-    //Smart device list
-    Map<String, String> devicesList = new HashMap<String, String>();
+    //Optional journal of received packets, replayed offline by the JournalReplay test tool
+    private PacketJournal journal = null;
+    private String journalFile = "";
+    private int journalSize = 16 * 1024 * 1024;
+
+    //Smart device list, written by the receive thread and read by the refresh service
+    Map<String, String> devicesList = new ConcurrentHashMap<String, String>();
+
+    //Last known state of every device, served by the state service
+    private final DeviceStateStore deviceStates = new DeviceStateStore();
+
+    //Bound items per item name and per sid, maintained incrementally on binding changes
+    private final BindingIndex index = new BindingIndex();
+
+    //Sensor history of numeric values keyed by item type (sid.event)
+    private final Map<String, SensorHistory> histories = new ConcurrentHashMap<String, SensorHistory>();
+
+    //Deadband and minimal interval filtering of numeric updates
+    private final UpdateFilter updateFilter = new UpdateFilter();
+
+    //Plug power items published once per window
+    private final PowerAggregator powerAggregator = new PowerAggregator(this::processAggregatedValue);
+
+    //Item updates and commands are published from a dedicated thread, not from the receive thread
+    private final CoalescingEventPublisher publisher = new CoalescingEventPublisher(EVENT_QUEUE_CAPACITY);
+
+    //Updates of the packet being dispatched, published together when the dispatch is done
+    private CoalescingEventPublisher.UpdateBatch currentBatch = null;
+
+    //Requests to the gateway are sent from a dedicated thread, not from the event bus thread,
+    //limited to sendRate requests per second
+    private int sendRate = 20;
+    private OutboundQueue.RequestSender requestSender = this::sendRequest;
+    private final OutboundQueue outbound = new OutboundQueue(OUTBOUND_QUEUE_CAPACITY, sendRate, request -> requestSender.send(request));
+
+    //Device liveness, a device is offline after missing several heartbeats
+    private int missedHeartbeats = 3;
+    private final LivenessTracker liveness = new LivenessTracker(missedHeartbeats, this::processOnlineEvent);
+
+    //Receive counters and packet loss estimation
+    private final PacketStatistics packetStatistics = new PacketStatistics();
+
+    //Device writes grouped into batches and retried until acked
+    private long writeBatchWindow = 50;
+    private long writeAckTimeout = 1000;
+    private int writeRetries = 2;
+    private final WriteBatcher writeBatcher = new WriteBatcher(write -> outbound.offer(
+            new OutboundQueue.Request(OutboundQueue.Request.WRITE, write.sid, write.keys, write.values, OutboundQueue.INTERACTIVE)));
+
+    //Round trip times of read/write requests per device
+    private final RoundTripTracker roundTrips = new RoundTripTracker();
+
+    //Rate limited logging of the packet path
+    private int logRate = 10;
+    private int logSample = 1;
+    private final LogLimiter packetLog = new LogLimiter(logger);
+
+    //Initial sync after activation, signalled by syncItem
+    private long syncTimeout = 30000;
+    private String syncItem = "";
+    private final InitialSync initialSync = new InitialSync(this::initialSyncCompleted);
+
+    //Repeated multicast reports are dropped within the TTL (ms)
+    private long duplicateTtl = 500;
+    private final DuplicateFilter duplicateFilter = new DuplicateFilter(duplicateTtl);
+
+    //Periodic reads of the devices, interval per model (poll.<model>=15s or off) or refreshInterval
+    private final PollScheduler pollScheduler = new PollScheduler(60000);
+
+    //Periodic housekeeping (liveness ticks, aggregation windows, polling)
+    private ScheduledExecutorService scheduler;
+
+    private final MBeanRegistry mbeans = new MBeanRegistry();
 
     //Configuration
     private String key = "";
 
     //Gateway info
     private String sid = "";
-    private String token = "";
-    private long rgb = 0;
-    private int illumination = 0;
-    private long startColor = 1677786880L; //green
+    private volatile String token = "";
+    private final GatewayLight light = new GatewayLight();
+    private volatile long startColor = 1677786880L; //green
 
     //Gson parser
     private JsonParser parser = new JsonParser();
-    private Gson gson = new Gson();
+    private Gson gson = new GsonBuilder()
+            .registerTypeAdapter(GatewayResponse.class, new GatewayResponse.Adapter())
+            .registerTypeAdapter(GatewayDataResponse.class, new GatewayDataResponse.Adapter())
+            .create();
 
 
-    byte[] buffer = new byte[BUFFER_LENGTH];
-    DatagramPacket dgram = new DatagramPacket(buffer, buffer.length);
+    byte[] buffer;
+    DatagramPacket dgram;
 
     private static final Logger logger =
             LoggerFactory.getLogger(XiaomiGatewayBinding.class);
@@ -86,6 +181,18 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
         this.itemRegistry = null;
     }
 
+    @Override
+    public void setEventPublisher(EventPublisher eventPublisher) {
+        super.setEventPublisher(eventPublisher);
+        publisher.setEventPublisher(eventPublisher);
+    }
+
+    @Override
+    public void unsetEventPublisher(EventPublisher eventPublisher) {
+        super.unsetEventPublisher(eventPublisher);
+        publisher.setEventPublisher(null);
+    }
+
     /**
      * The BundleContext. This is only valid when the bundle is ACTIVE. It is set in the activate()
      * method and must not be accessed anymore once the deactivate() method was called or before activate()
@@ -106,6 +213,13 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
     public XiaomiGatewayBinding() {
     }
 
+    /**
+     * Creates a binding whose requests to the gateway are handed to the given sender instead of the socket
+     */
+    XiaomiGatewayBinding(OutboundQueue.RequestSender requestSender) {
+        this.requestSender = requestSender;
+    }
+
 
     /**
      * Called by the SCR to activate the component with its configuration read from CAS
@@ -121,11 +235,74 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
 
         // read further config parameters here ...
         readConfiguration(configuration);
+        initialSync.start(System.currentTimeMillis(), syncTimeout);
+        publisher.start();
+        if (!syncItem.isEmpty()) {
+            publisher.postUpdate(syncItem, OnOffType.OFF);
+        }
+        registerMBeans();
+        startScheduler();
+        writeBatcher.start(scheduler);
+        openJournal();
         setupSocket();
         setProperlyConfigured(socket != null);
+        outbound.start();
         discoverGateways();
     }
 
+    /**
+     * Starts the binding without a socket, packets are fed by {@link #processPacket} and requests go to the
+     * sender given to the constructor. Used by the journal replay and the tests, not by the SCR.
+     */
+    void startOffline(Map<String, Object> configuration) {
+        readConfiguration(configuration);
+        initialSync.start(System.currentTimeMillis(), syncTimeout);
+        publisher.start();
+        outbound.start();
+    }
+
+    private void registerMBeans() {
+        mbeans.register("Publisher", publisher, CoalescingEventPublisherMBean.class);
+        mbeans.register("Outbound", outbound, OutboundQueueMBean.class);
+        mbeans.register("Writes", writeBatcher, WriteBatcherMBean.class);
+        mbeans.register("Packets", packetStatistics, PacketStatisticsMBean.class);
+        mbeans.register("Duplicates", duplicateFilter, DuplicateFilterMBean.class);
+        mbeans.register("Liveness", liveness, LivenessTrackerMBean.class);
+        mbeans.register("RoundTrips", roundTrips, RoundTripTrackerMBean.class);
+        mbeans.register("Log", packetLog, LogLimiterMBean.class);
+        mbeans.register("InitialSync", initialSync, InitialSyncMBean.class);
+        mbeans.register("Aggregation", powerAggregator, PowerAggregatorMBean.class);
+        mbeans.register("Binding", new BindingGauges(devicesList, index), BindingGaugesMBean.class);
+    }
+
+    private void startScheduler() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "XiaomiGateway scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(() -> {
+            long now = System.currentTimeMillis();
+            liveness.tick(now);
+            powerAggregator.tick(now);
+            pollScheduler.tick(now, this::pollDevice);
+            packetLog.tick(now);
+            initialSync.tick(now);
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private void openJournal() {
+        if (journalFile.isEmpty()) {
+            return;
+        }
+        try {
+            journal = PacketJournal.open(new File(journalFile), journalSize);
+            logger.info("Writing received packets to journal: {}", journalFile);
+        } catch (Exception e) {
+            logger.error("Cannot open packet journal {}: {}", journalFile, e.toString());
+        }
+    }
+
     private void readConfiguration(Map<String, Object> configuration) {
         // to override the default refresh interval one has to add a
         // parameter to openhab.cfg like <bindingName>:refresh=<intervalInMs>
@@ -142,137 +319,439 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
         if (StringUtils.isNotBlank(keyString)) {
             key = keyString;
         }
+        String missedHeartbeatsString = (String) configuration.get("missedHeartbeats");
+        if (StringUtils.isNotBlank(missedHeartbeatsString)) {
+            missedHeartbeats = Integer.parseInt(missedHeartbeatsString);
+            liveness.setMissedHeartbeats(missedHeartbeats);
+        }
+        String receiveBufferSizeString = (String) configuration.get("receiveBufferSize");
+        if (StringUtils.isNotBlank(receiveBufferSizeString)) {
+            receiveBufferSize = Integer.parseInt(receiveBufferSizeString);
+        }
+        String datagramSizeString = (String) configuration.get("datagramSize");
+        if (StringUtils.isNotBlank(datagramSizeString)) {
+            datagramSize = Integer.parseInt(datagramSizeString);
+        }
+        String syncTimeoutString = (String) configuration.get("syncTimeout");
+        if (StringUtils.isNotBlank(syncTimeoutString)) {
+            syncTimeout = Long.parseLong(syncTimeoutString);
+        }
+        String syncItemString = (String) configuration.get("syncItem");
+        if (StringUtils.isNotBlank(syncItemString)) {
+            syncItem = syncItemString.trim();
+        }
+        String logRateString = (String) configuration.get("logRate");
+        if (StringUtils.isNotBlank(logRateString)) {
+            logRate = Integer.parseInt(logRateString);
+        }
+        String logSampleString = (String) configuration.get("logSample");
+        if (StringUtils.isNotBlank(logSampleString)) {
+            logSample = Integer.parseInt(logSampleString);
+        }
+        packetLog.configure(logRate, logSample);
+        String writeBatchWindowString = (String) configuration.get("writeBatchWindow");
+        if (StringUtils.isNotBlank(writeBatchWindowString)) {
+            writeBatchWindow = Long.parseLong(writeBatchWindowString);
+        }
+        String writeAckTimeoutString = (String) configuration.get("writeAckTimeout");
+        if (StringUtils.isNotBlank(writeAckTimeoutString)) {
+            writeAckTimeout = Long.parseLong(writeAckTimeoutString);
+        }
+        String writeRetriesString = (String) configuration.get("writeRetries");
+        if (StringUtils.isNotBlank(writeRetriesString)) {
+            writeRetries = Integer.parseInt(writeRetriesString);
+        }
+        writeBatcher.configure(writeBatchWindow, writeAckTimeout, writeRetries);
+        String sendRateString = (String) configuration.get("sendRate");
+        if (StringUtils.isNotBlank(sendRateString)) {
+            sendRate = Integer.parseInt(sendRateString);
+            outbound.setRate(sendRate);
+        }
+        String duplicateTtlString = (String) configuration.get("duplicateTtl");
+        if (StringUtils.isNotBlank(duplicateTtlString)) {
+            duplicateTtl = Long.parseLong(duplicateTtlString);
+            duplicateFilter.setTtl(duplicateTtl);
+        }
+        String journalString = (String) configuration.get("journal");
+        if (StringUtils.isNotBlank(journalString)) {
+            journalFile = journalString;
+        }
+        String journalSizeString = (String) configuration.get("journalSize");
+        if (StringUtils.isNotBlank(journalSizeString)) {
+            journalSize = Integer.parseInt(journalSizeString);
+        }
+        readPollProfiles(configuration);
 
     }
 
+    /**
+     * Reads the polling profiles poll.<model>=<interval> (e.g. poll.plug=15s, poll.magnet=off)
+     */
+    private void readPollProfiles(Map<String, Object> configuration) {
+        Map<String, Long> profiles = new HashMap<String, Long>();
+        for (Map.Entry<String, Object> entry : configuration.entrySet()) {
+            if (!entry.getKey().startsWith("poll.") || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String model = entry.getKey().substring(5);
+            String value = ((String) entry.getValue()).trim();
+            if (StringUtils.isBlank(value)) {
+                continue;
+            }
+            try {
+                profiles.put(model, value.equals("off") ? 0 : XiaomiGatewayGenericBindingProvider.parseDuration(value));
+            } catch (NumberFormatException e) {
+                logger.error("Invalid poll interval of model {}: {}", model, value);
+            }
+        }
+        if (!profiles.isEmpty()) {
+            logger.debug("Polling profiles: {}", profiles);
+        }
+        pollScheduler.setProfiles(profiles, refreshInterval, System.currentTimeMillis());
+    }
+
     private void discoverGateways() {
-        try {
-            String sendString = "{\"cmd\": \"whois\"}";
-            byte[] sendData = sendString.getBytes("UTF-8");
-            InetAddress addr = InetAddress.getByName(MCAST_ADDR);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, addr, MCAST_PORT);
+        outbound.offer(new OutboundQueue.Request(OutboundQueue.Request.WHOIS, null, OutboundQueue.DISCOVERY));
+    }
 
-            socket.send(sendPacket);
-        } catch (IOException e) {
-            logger.error(e.toString());
-        }
+    private void sendWhois() throws IOException {
+        String sendString = "{\"cmd\": \"whois\"}";
+        byte[] sendData = sendString.getBytes("UTF-8");
+        InetAddress addr = InetAddress.getByName(MCAST_ADDR);
+        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, addr, MCAST_PORT);
+
+        socket.send(sendPacket);
     }
 
     private void setupSocket() {
         try {
-            socket = new MulticastSocket(dest_port); // must bind receive side
+            socket = new MulticastSocket(receivePort); // must bind receive side
+            socket.setReceiveBufferSize(receiveBufferSize);
+            if (socket.getReceiveBufferSize() < receiveBufferSize) {
+                logger.warn("Socket receive buffer size is limited by the OS to {} bytes instead of {}", socket.getReceiveBufferSize(), receiveBufferSize);
+            }
             socket.joinGroup(InetAddress.getByName(MCAST_ADDR));
         } catch (IOException e) {
             logger.error(e.toString());
         }
 
-        thread = new Thread(() -> receiveData(socket, dgram));
+        //one spare byte tells a datagram filling datagramSize exactly from a truncated one
+        buffer = new byte[datagramSize + 1];
+        dgram = new DatagramPacket(buffer, buffer.length);
+
+        if (socket == null) {
+            return;
+        }
+        thread = new Thread(() -> receiveData(socket, dgram), "XiaomiGateway receiver");
+        thread.setDaemon(true);
         thread.start();
     }
 
+    void setReceivePort(int receivePort) {
+        this.receivePort = receivePort;
+    }
+
+    /**
+     * Returns the local port of the socket or -1 if there is no socket
+     */
+    int getReceivePort() {
+        MulticastSocket s = socket;
+        return s != null ? s.getLocalPort() : -1;
+    }
+
     private void receiveData(MulticastSocket socket, DatagramPacket dgram) {
         while (!socket.isClosed()) {
             try {
+                dgram.setLength(buffer.length);
                 socket.receive(dgram);
+                long received = System.currentTimeMillis();
+                packetStatistics.packetReceived();
+                if (journal != null) {
+                    journal.append(received, dgram.getAddress(), dgram.getPort(), dgram.getData(), dgram.getOffset(), dgram.getLength());
+                }
                 String sentence = new String(dgram.getData(), 0,
                         dgram.getLength());
 
-                logger.debug("Received packet: {}", sentence);
+                if (logger.isDebugEnabled() && packetLog.sample()) {
+                    logger.debug("Received packet: {}", sentence);
+                }
+                if (dgram.getLength() > datagramSize) {
+                    //the datagram did not fit into the buffer, the rest has been discarded
+                    packetStatistics.packetTruncated();
+                    packetLog.warn("truncated packet", "Received truncated packet of {} bytes, please increase datagramSize: {}", dgram.getLength(), sentence);
+                    continue;
+                }
+                processPacket(sentence, received);
+            } catch (Exception e) {
+                packetLog.error(e);
+            }
+        }
+    }
 
-                GatewayResponse response = gson.fromJson(sentence, GatewayResponse.class);
-                String command = response.getCmd();
+    /**
+     * Decodes and dispatches one packet, called from the receive thread and from the journal replay
+     *
+     * @param timestamp receive time of the packet in ms, the time recorded in the journal on replay
+     */
+    synchronized void processPacket(String sentence, long timestamp) {
+        long start = System.nanoTime();
+        GatewayResponse response = gson.fromJson(sentence, GatewayResponse.class);
+        long decoded = System.nanoTime();
+        if (response == null || response.getCmd() == null) {
+            packetLog.warn("invalid packet", "Received packet without a command: {}", sentence);
+            return;
+        }
+        processResponse(sentence, response, timestamp);
+        FlightRecorderEvents.packetReceived(response.getSid(), response.getCmd(), response.getModel(), sentence.length(),
+                decoded - start, System.nanoTime() - decoded);
+    }
 
-                if (response.getModel() != null && response.getSid() != null) {
-                    addDevice(response.getSid(), response.getModel());
-                }
+    private void processResponse(String sentence, GatewayResponse response, long timestamp) {
+        String command = response.getCmd();
 
-                switch (command) {
-                    case "iam":
-                        getGatewayInfo(response);
-                        requestRead(sid);
-                        requestIdList();
-                        break;
-                    case "get_id_list_ack":
-                        token = response.getToken();
-                        listIds(response);
-                        break;
-                    case "read_ack":
-                        listDevice(response);
-                        break;
-                    case "write":
-                        logger.error("Received write command which is designed for the gateway. Are you sure you have the right developer key? {}", sentence);
-                        break;
-                    case "write_ack":
-                        if (sentence.contains("\"error")) {
-                            logger.error("Received error write ack: {}", sentence);
-                        }
-                        break;
-                    case "heartbeat":
-                        //String model = jobject.get("model").getAsString();
-                        String model = response.getModel();
-                        if (model.equals("gateway")) {
-                            //token = jobject.get("token").getAsString();
-                            token = response.getToken();
-                            break;
-                        }
-                        if (model.equals("cube") || model.equals("switch")) {
-                            break;
-                        }
-                        processOtherCommands(response);
-                        break;
-                    case "report":
-                        processOtherCommands(response);
-                        break;
-                    default:
-                        logger.error("Unknown Xiaomi gateway command: {}", command);
+        if (command.equals("report") && duplicateFilter.isDuplicate(response.getSid(), command, response.getData(), timestamp)) {
+            logger.trace("Dropping repeated report of sid: {}", response.getSid());
+            return;
+        }
+
+        if (response.getModel() != null && response.getSid() != null) {
+            addDevice(response.getSid(), response.getModel(), timestamp);
+            //read_ack is answered by the gateway even if the device is gone, only its own messages prove liveness
+            if (command.equals("heartbeat") || command.equals("report") || command.equals("iam")) {
+                liveness.seen(response.getSid(), response.getModel(), timestamp);
+            }
+            deviceStates.update(response.getSid(), response.getModel(), command.equals("iam") ? response.getSid() : sid, response.getData(), timestamp);
+        }
+
+        switch (command) {
+            case "iam":
+                getGatewayInfo(response);
+                //the id list and the reads of the bound devices are requested together, not one after another
+                requestIdList();
+                requestRead(sid, OutboundQueue.DISCOVERY);
+                requestInitialReads();
+                break;
+            case "get_id_list_ack":
+                token = response.getToken();
+                listIds(response);
+                break;
+            case "read_ack":
+                logRoundTrip(command, response.getSid(), roundTrips.readAcked(response.getSid(), System.nanoTime()));
+                listDevice(response, timestamp);
+                break;
+            case "write":
+                packetLog.error("write command", "Received write command which is designed for the gateway. Are you sure you have the right developer key? {}", sentence);
+                break;
+            case "write_ack":
+                logRoundTrip(command, response.getSid(), roundTrips.writeAcked(response.getSid(), System.nanoTime()));
+                if (sentence.contains("\"error")) {
+                    packetLog.error("error write ack", "Received error write ack: {}", sentence);
+                    writeBatcher.acked(response.getSid(), false);
+                } else {
+                    writeBatcher.acked(response.getSid(), true);
                 }
-            } catch (Exception e) {
-                logger.error(e.toString());
+                break;
+            case "heartbeat":
+                //String model = jobject.get("model").getAsString();
+                String model = response.getModel();
+                if (model.equals("gateway")) {
+                    //token = jobject.get("token").getAsString();
+                    token = response.getToken();
+                    long missed = packetStatistics.gatewayHeartbeat(response.getSid(), timestamp);
+                    if (missed > 0) {
+                        logger.debug("Missed {} heartbeats of the gateway - sid: {}", missed, response.getSid());
+                    }
+                    break;
+                }
+                if (model.equals("cube") || model.equals("switch")) {
+                    break;
+                }
+                processOtherCommands(response, timestamp);
+                break;
+            case "report":
+                processOtherCommands(response, timestamp);
+                break;
+            default:
+                packetLog.error("unknown command", "Unknown Xiaomi gateway command: {}", command);
+        }
+
+        if (response.getSid() != null && response.getData() != null) {
+            initialSync.seen(response.getSid(), timestamp);
+        }
+    }
+
+    /**
+     * Reads the devices with bound items as soon as the gateway is known, without waiting for the id list
+     */
+    private void requestInitialReads() {
+        Set<String> sids = index.getSids();
+        if (!initialSync.discovered(sids, System.currentTimeMillis())) {
+            return;
+        }
+        for (String device : sids) {
+            if (!device.equals(sid)) {
+                requestRead(device, OutboundQueue.DISCOVERY);
             }
         }
     }
 
-    private void addDevice(String newId, String model) {
+    private void initialSyncCompleted(long duration, int missing) {
+        if (missing > 0) {
+            logger.warn("Initial sync timed out after {} ms, {} devices with bound items have not answered", duration, missing);
+        } else {
+            logger.info("Initial sync completed after {} ms", duration);
+        }
+        if (!syncItem.isEmpty()) {
+            publisher.postUpdate(syncItem, OnOffType.ON);
+        }
+    }
+
+    private void logRoundTrip(String command, String ackSid, long rtt) {
+        if (rtt >= 0) {
+            logger.trace("Received {} of sid: {} after {} ms", command, ackSid, rtt);
+            FlightRecorderEvents.ackMatched(command, ackSid, rtt);
+        }
+    }
+
+    private void addDevice(String newId, String model, long now) {
         if (!devicesList.containsKey(newId)) {
             logger.info("Detected a new Xiaomi smart device - sid: {} model: {}", newId, model);
             devicesList.put(newId, model);
+            liveness.track(newId, model, now);
+            pollScheduler.add(newId, model, now);
         }
     }
 
-    private void processOtherCommands(GatewayResponse response) {
-        for (final XiaomiGatewayBindingProvider provider : providers) {
-            for (String itemName : provider.getItemNames()) {
-                processEvent(provider, itemName, response);
+    private void processOnlineEvent(String eventSid, boolean online) {
+        if (!online) {
+            logger.warn("Xiaomi smart device - sid: {} model: {} missed {} heartbeats, flagging it offline", eventSid, devicesList.get(eventSid), missedHeartbeats);
+        }
+        BindingIndex.Route route = index.getRoute(eventSid);
+        if (route == null) {
+            return;
+        }
+        for (ItemBinding binding : route.items) {
+            if (binding.event.equals("online")) {
+                initialSync.stateReceived(binding.itemName, System.currentTimeMillis());
+                publisher.postUpdate(binding.itemName, online ? OnOffType.ON : OnOffType.OFF);
             }
+        }
+    }
+
+    private void processOtherCommands(GatewayResponse response, long timestamp) {
+        BindingIndex.Route route = index.getRoute(response.getSid());
+        if (route == null) {
+            //no item bound to this device
+            return;
+        }
+        if (response.getData() != null) {
+            response.setDecodedData(GatewayDataResponse.fromJson(response.getData(), route.fieldMask));
+        }
+
+        long start = System.nanoTime();
+        CoalescingEventPublisher.UpdateBatch batch = new CoalescingEventPublisher.UpdateBatch(timestamp);
+        currentBatch = batch;
+        try {
+            for (ItemBinding binding : route.items) {
+                processEvent(binding, response, timestamp);
+            }
+        } finally {
+            currentBatch = null;
+        }
+        long dispatched = System.nanoTime();
+        int updates = batch.size();
+        if (updates > 0) {
+            publisher.postUpdates(batch);
+        }
+        FlightRecorderEvents.packetDispatched(response.getSid(), response.getModel(), route.items.length, updates,
+                dispatched - start, System.nanoTime() - dispatched);
+    }
 
+    /**
+     * Returns the data of the packet decoded only once
+     */
+    private GatewayDataResponse getData(GatewayResponse response) {
+        GatewayDataResponse data = response.getDecodedData();
+        if (data == null && response.getData() != null) {
+            data = GatewayDataResponse.fromJson(response.getData(), GatewayDataResponse.ALL_FIELDS);
+            response.setDecodedData(data);
         }
+        return data;
     }
 
-    private void processEvent(XiaomiGatewayBindingProvider provider, String itemName, GatewayResponse response) {
-        String type = provider.getItemType(itemName);
-        String eventSid = response.getSid();
+    @Override
+    public void bindingChanged(BindingProvider provider, String itemName) {
+        super.bindingChanged(provider, itemName);
+        if (provider instanceof XiaomiGatewayBindingProvider) {
+            releaseItem(index.update((XiaomiGatewayBindingProvider) provider, itemName));
+        }
+    }
 
-        if (!(type.startsWith(eventSid) && type.contains(".")))
+    @Override
+    public void allBindingsChanged(BindingProvider provider) {
+        super.allBindingsChanged(provider);
+        if (provider instanceof XiaomiGatewayBindingProvider) {
+            for (ItemBinding binding : index.update((XiaomiGatewayBindingProvider) provider, providers.contains(provider))) {
+                releaseItem(binding);
+            }
+        }
+    }
+
+    /**
+     * Drops the filter state and the history kept for an item which has been unbound or rebound to another value
+     */
+    private void releaseItem(ItemBinding old) {
+        if (old == null) {
+            return;
+        }
+        ItemBinding current = index.getItem(old.itemName);
+        if (current != null && current.type.equals(old.type)) {
             return;
+        }
+        updateFilter.remove(old.itemName);
+        powerAggregator.remove(old.itemName);
+        BindingIndex.Route route = index.getRoute(old.sid);
+        if (route != null) {
+            for (ItemBinding binding : route.items) {
+                if (binding.type.equals(old.type)) {
+                    //the history is still used by another item
+                    return;
+                }
+            }
+        }
+        histories.remove(old.type);
+    }
 
-        String event = getItemEvent(type);
-        switch (event) {
+    private void postUpdate(String itemName, State newValue) {
+        initialSync.stateReceived(itemName, System.currentTimeMillis());
+        if (currentBatch != null) {
+            currentBatch.add(itemName, newValue);
+        } else {
+            publisher.postUpdate(itemName, newValue);
+        }
+    }
+
+    private void processEvent(ItemBinding binding, GatewayResponse response, long timestamp) {
+        String itemName = binding.itemName;
+        String type = binding.type;
+
+        switch (binding.event) {
             case "temperature":
                 if (isTemperatureEvent(response)) {
                     logger.debug("Processing temperature event");
-                    processTemperatureEvent(itemName, response);
+                    processTemperatureEvent(itemName, type, response, timestamp);
                 }
                 break;
             case "humidity":
                 if (isHumidityEvent(response)) {
                     logger.debug("Processing humidity event");
-                    processHumidityEvent(itemName, response);
+                    processHumidityEvent(itemName, type, response, timestamp);
                 }
                 break;
             case "pressure":
                 if (isPressureEvent(response)) {
                     logger.debug("Processing pressure event");
-                    processPressureEvent(itemName, response);
+                    processPressureEvent(itemName, type, response, timestamp);
                 }
                 break;
             case "light":
@@ -306,31 +785,31 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             case "click":
                 if (isButtonEvent(response, "click") || isSwitchEvent(response, type, "click")) {
                     logger.debug("Processing click event");
-                    eventPublisher.sendCommand(itemName, OnOffType.ON);
+                    publisher.sendCommand(itemName, OnOffType.ON);
                 }
                 break;
             case "double_click":
                 if (isButtonEvent(response, "double_click") || isSwitchEvent(response, type, "double_click")) {
                     logger.debug("Processing double click event");
-                    eventPublisher.sendCommand(itemName, OnOffType.ON);
+                    publisher.sendCommand(itemName, OnOffType.ON);
                 }
                 break;
             case "both_click":
                 if (isDualSwitchEvent(response, type)) {
                     logger.debug("Processing both click event");
-                    eventPublisher.sendCommand(itemName, OnOffType.ON);
+                    publisher.sendCommand(itemName, OnOffType.ON);
                 }
                 break;
             case "long_click":
                 if (isButtonEvent(response, "long_click_press")) {
                     logger.debug("Processing long click event");
-                    eventPublisher.sendCommand(itemName, OnOffType.ON);
+                    publisher.sendCommand(itemName, OnOffType.ON);
                 }
                 break;
             case "long_click_release":
                 if (isButtonEvent(response, "long_click_release")) {
                     logger.debug("Processing long click release event");
-                    eventPublisher.sendCommand(itemName, OnOffType.ON);
+                    publisher.sendCommand(itemName, OnOffType.ON);
                 }
                 break;
             case "switch":
@@ -366,19 +845,19 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             case "power_consumed":
                 if (isCommonPlugEvent(response)) {
                     logger.debug("Processing plug power_consumed event");
-                    processPlugPowerConsumedEvent(itemName, response);
+                    processPlugPowerConsumedEvent(itemName, type, response, timestamp);
                 }
                 break;
             case "load_power":
                 if (isCommonPlugEvent(response)) {
                     logger.debug("Processing plug load_power event");
-                    processPlugLoadPowerEvent(itemName, response);
+                    processPlugLoadPowerEvent(itemName, type, response, timestamp);
                 }
                 break;
             case "voltage":
                 if (hasVoltage(response)) {
                     logger.debug("Processing voltage event");
-                    processVoltageEvent(itemName, response);
+                    processVoltageEvent(itemName, type, response, timestamp);
                 }
                 break;
             case "alarm":
@@ -387,6 +866,9 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
                     processAlarmEvent(itemName, response);
                 }
                 break;
+            case "online":
+                //published by the liveness tracker
+                break;
             case "density":
                 if(isSmokeEvent(response)) {
                     logger.debug("Processing smoke event");
@@ -402,75 +884,86 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
 
     private void processWallSwitchEvent(String itemName, String itemType, GatewayResponse response) {
         try {
-            String channel = getItemChannel(itemType);
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            String channel = ItemBinding.getChannel(itemType);
+            GatewayDataResponse data = getData(response);
             String value = data.getChannel(channel).toLowerCase();
             State oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = value.equals("on") ? OnOffType.ON : OnOffType.OFF;
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
         }
     }
 
     private void processLightSwitchEvent(String itemName, GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            rgb = data.getRgb().longValue();
+            GatewayDataResponse data = getData(response);
+            if (!data.hasRgb())
+                return;
+            long rgb = data.getRgb();
+            light.setRgb(rgb);
             State oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = rgb > 0 ? OnOffType.ON : OnOffType.OFF;
 
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
         }
     }
 
     private void processColorEvent(String itemName, GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            rgb = data.getRgb().longValue();
+            GatewayDataResponse data = getData(response);
+            if (!data.hasRgb())
+                return;
+            long rgb = data.getRgb();
+            light.setRgb(rgb);
             State oldValue = itemRegistry.getItem(itemName).getState();
             //HSBType
-            long br = rgb / 65536 / 256;
-            Color color = new Color((int) (rgb - (br * 65536 * 256)));
+            Color color = new Color(GatewayLight.color(rgb));
             State newValue = new HSBType(color);
 
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
         }
     }
 
     private void processBrightnessEvent(String itemName, GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            rgb = data.getRgb().longValue();
+            GatewayDataResponse data = getData(response);
+            if (!data.hasRgb())
+                return;
+            long rgb = data.getRgb();
+            light.setRgb(rgb);
             State oldValue = itemRegistry.getItem(itemName).getState();
             //HSBType
-            int brightness = (int) (rgb / 65536 / 256);
+            int brightness = GatewayLight.brightness(rgb);
             State newValue = new PercentType(brightness);
 
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
         }
     }
 
     private void processIlluminationEvent(String itemName, GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            illumination = data.getIllumination().intValue();
+            GatewayDataResponse data = getData(response);
+            if (!data.hasIllumination())
+                return;
+            int illumination = (int) data.getIllumination();
+            light.setIllumination(illumination);
             State oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = new DecimalType(illumination);
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
         }
     }
 
@@ -519,39 +1012,39 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
                 publish = type.endsWith(".rotate_right");
                 break;
             default:
-                logger.error("Unknown cube event: {}", event);
+                packetLog.error("unknown cube event", "Unknown cube event: {}", event);
         }
 
         if (publish)
-            eventPublisher.sendCommand(itemName, OnOffType.ON);
+            publisher.sendCommand(itemName, OnOffType.ON);
     }
 
     private boolean isLeftRotate(GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return response.getModel().equals("cube") && data.getRotate() != null && data.getRotate().startsWith("-");
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isRotateCubeEvent(GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return response.getModel().equals("cube") && data.getRotate() != null;
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private String getStatusEvent(GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return data.getStatus();
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return null;
         }
     }
@@ -589,8 +1082,8 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             /*
             String data = response.getData();
             JsonObject jo = parser.parse(data).getAsJsonObject();*/
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            if (data.getVoltage() != null) {
+            GatewayDataResponse data = getData(response);
+            if (data.hasVoltage()) {
                 return true;
             }
         }
@@ -609,75 +1102,72 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
         JsonArray ja = parser.parse(data).getAsJsonArray();
         if (devicesList.size() <= 1)
             logger.info("Discovered total of {} Xiaomi smart subdevices", ja.size());
-        requestRead(sid);
+        requestRead(sid, OutboundQueue.DISCOVERY);
         for (JsonElement je : ja) {
-            requestRead(je.getAsString());
+            String device = je.getAsString();
+            if (!initialSync.isRequested(device)) {
+                requestRead(device, OutboundQueue.DISCOVERY);
+            }
         }
     }
 
-    private void listDevice(GatewayResponse response) {
+    private void listDevice(GatewayResponse response, long timestamp) {
         String newId = response.getSid();
         String model = response.getModel();
-        addDevice(newId, model);
-        processOtherCommands(response);
+        addDevice(newId, model, timestamp);
+        processOtherCommands(response, timestamp);
     }
 
     private void processMotionEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+        GatewayDataResponse data = getData(response);
         String stat = data.getStatus() != null ? data.getStatus().toLowerCase() : "no_motion";
         State oldValue;
         try {
             oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = stat.equals("motion") ? OpenClosedType.OPEN : OpenClosedType.CLOSED;
             if (!newValue.equals(oldValue) || newValue.equals(OpenClosedType.OPEN))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
     }
 
-    private void processVoltageEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-        State newValue = data.getVoltage() != null ? new DecimalType(data.getVoltage().intValue()) : new DecimalType(0);
-        try {
-            State oldValue = itemRegistry.getItem(itemName).getState();
-            if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
-        } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
-        }
+    private void processVoltageEvent(String itemName, String itemType, GatewayResponse response, long timestamp) {
+        GatewayDataResponse data = getData(response);
+        DecimalType newValue = data.hasVoltage() ? new DecimalType(data.getVoltage()) : new DecimalType(0);
+        postSensorValue(itemName, itemType, newValue, timestamp);
     }
 
     private void processPlugEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+        GatewayDataResponse data = getData(response);
         String stat = data.getStatus() != null ? data.getStatus().toLowerCase() : "off";
         State oldValue;
         try {
             oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = stat.equals("on") ? OnOffType.ON : OnOffType.OFF;
             if (!newValue.equals(oldValue) || newValue.equals(OnOffType.ON))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
     }
 
     private void processAlarmEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+        GatewayDataResponse data = getData(response);
         String stat = data.getStatus() != null ? data.getStatus().toLowerCase() : "0";
         State oldValue;
         try {
             oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = new DecimalType(Integer.parseInt(stat));
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
     }
 
     private void processDensityEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+        GatewayDataResponse data = getData(response);
         String density = data.getDensity();
         if(density == null ) {
             return;
@@ -687,24 +1177,23 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = new DecimalType(Integer.parseInt(density));
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
     }
 
-    private void processPlugPowerConsumedEvent(String itemName, GatewayResponse response) {
-        processPlugPowerEvent(itemName, response, "power_consumed");
+    private void processPlugPowerConsumedEvent(String itemName, String itemType, GatewayResponse response, long timestamp) {
+        processPlugPowerEvent(itemName, itemType, response, "power_consumed", timestamp);
     }
 
-    private void processPlugLoadPowerEvent(String itemName, GatewayResponse response) {
-        processPlugPowerEvent(itemName, response, "load_power");
+    private void processPlugLoadPowerEvent(String itemName, String itemType, GatewayResponse response, long timestamp) {
+        processPlugPowerEvent(itemName, itemType, response, "load_power", timestamp);
     }
 
-    private void processPlugPowerEvent(String itemName, GatewayResponse response, String event) {
-        State newValue;
-        State oldValue;
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+    private void processPlugPowerEvent(String itemName, String itemType, GatewayResponse response, String event, long timestamp) {
+        DecimalType newValue;
+        GatewayDataResponse data = getData(response);
         if (data.getPlugPowerValue(event) != null) {
             newValue = new DecimalType(Double.parseDouble(data.getPlugPowerValue(event)));
         } else {
@@ -714,18 +1203,11 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             } else
                 return;
         }
-        try {
-            oldValue = itemRegistry.getItem(itemName).getState();
-            if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
-        } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
-        }
-
+        postSensorValue(itemName, itemType, newValue, timestamp);
     }
 
     private void processPlugInuseEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+        GatewayDataResponse data = getData(response);
         State newValue;
         if (data.getInuse() != null) {
             newValue = data.getInuse().equals("1") ? OnOffType.ON : OnOffType.OFF;
@@ -741,9 +1223,9 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
         try {
             oldValue = itemRegistry.getItem(itemName).getState();
             if (!newValue.equals(oldValue) || newValue.equals(OnOffType.ON))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
     }
 
@@ -754,50 +1236,122 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             oldValue = itemRegistry.getItem(itemName).getState();
             command = oldValue.equals(OnOffType.ON) ? OnOffType.OFF : OnOffType.ON;
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
-        eventPublisher.sendCommand(itemName, command);
+        publisher.sendCommand(itemName, command);
     }
 
     private void processMagnetEvent(String itemName, GatewayResponse response) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+        GatewayDataResponse data = getData(response);
         String stat = data.getStatus().toLowerCase();
         State oldValue;
         try {
             oldValue = itemRegistry.getItem(itemName).getState();
             State newValue = stat.equals("close") ? OpenClosedType.CLOSED : OpenClosedType.OPEN;
             if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
         }
     }
 
-    private void processTemperatureEvent(String itemName, GatewayResponse response) {
-        processSensorHTPEvent(itemName, response, "temperature");
+    private void processTemperatureEvent(String itemName, String itemType, GatewayResponse response, long timestamp) {
+        processSensorHTPEvent(itemName, itemType, response, "temperature", timestamp);
     }
 
-    private void processHumidityEvent(String itemName, GatewayResponse response) {
-        processSensorHTPEvent(itemName, response, "humidity");
+    private void processHumidityEvent(String itemName, String itemType, GatewayResponse response, long timestamp) {
+        processSensorHTPEvent(itemName, itemType, response, "humidity", timestamp);
     }
 
-    private void processPressureEvent(String itemName, GatewayResponse response) {
-        processSensorHTPEvent(itemName, response, "pressure");
+    private void processPressureEvent(String itemName, String itemType, GatewayResponse response, long timestamp) {
+        processSensorHTPEvent(itemName, itemType, response, "pressure", timestamp);
     }
 
-    private void processSensorHTPEvent(String itemName, GatewayResponse response, String sensor) {
-        GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+    private void processSensorHTPEvent(String itemName, String itemType, GatewayResponse response, String sensor, long timestamp) {
+        GatewayDataResponse data = getData(response);
         Float val = formatValue(data.getHTPSensorValue(sensor));
+        postSensorValue(itemName, itemType, new DecimalType(val), timestamp);
+    }
+
+    /**
+     * Records the value in the sensor history and posts either the raw value
+     * or the value derived from the history (derive=avg/min/max/rate) to the item
+     * unless it is suppressed by the item's delta or minInterval.
+     */
+    private void postSensorValue(String itemName, String itemType, DecimalType value, long timestamp) {
+        SensorHistory history = histories.get(itemType);
+        if (history == null) {
+            history = new SensorHistory();
+            histories.put(itemType, history);
+        }
+        history.add(timestamp, value.doubleValue());
+
+        ItemBinding binding = index.getItem(itemName);
+        if (binding == null) {
+            return;
+        }
+        if (binding.aggregate != null) {
+            //published when the window closes
+            powerAggregator.add(itemName, binding.aggregate, binding.window, binding.event.equals("power_consumed"), timestamp, value.doubleValue());
+            return;
+        }
+        DecimalType newValue = value;
+        if (binding.derive != null) {
+            double derived = getDerivedValue(history, binding.derive, timestamp - binding.window, timestamp);
+            if (Double.isNaN(derived)) {
+                return;
+            }
+            newValue = new DecimalType(new BigDecimal(derived).setScale(2, RoundingMode.HALF_UP));
+        }
         try {
             State oldValue = itemRegistry.getItem(itemName).getState();
-            State newValue = new DecimalType(val);
-            if (!newValue.equals(oldValue))
-                eventPublisher.postUpdate(itemName, newValue);
+            if (!newValue.equals(oldValue) && updateFilter.accept(itemName, newValue.doubleValue(), binding.delta, binding.minInterval, timestamp))
+                postUpdate(itemName, newValue);
         } catch (ItemNotFoundException e) {
-            logger.error(e.toString());
+            packetLog.error(e);
+        }
+    }
+
+    private void processAggregatedValue(String itemName, double value) {
+        publisher.postUpdate(itemName, new DecimalType(new BigDecimal(value).setScale(2, RoundingMode.HALF_UP)));
+    }
+
+    private double getDerivedValue(SensorHistory history, String derive, long from, long to) {
+        switch (derive) {
+            case "avg":
+                return history.getAverage(from, to);
+            case "min":
+                return history.getMinimum(from, to);
+            case "max":
+                return history.getMaximum(from, to);
+            case "rate":
+                return history.getRateOfChange(from, to);
+            default:
+                return Double.NaN;
         }
     }
 
+    @Override
+    public XiaomiDeviceState getDeviceState(String sid) {
+        return deviceStates.get(sid);
+    }
+
+    @Override
+    public Map<String, XiaomiDeviceState> getDeviceStates() {
+        return deviceStates.getAll();
+    }
+
+    @Override
+    public boolean isInitialSyncComplete() {
+        return initialSync.isComplete();
+    }
+
+    @Override
+    public XiaomiSensorHistory getSensorHistory(String sid, String event, long from, long to) {
+        SensorHistory history = histories.get(sid + "." + event);
+        return history != null ? history.getSnapshot(sid, event, from, to) : null;
+    }
+
     private boolean isMagnetEvent(GatewayResponse response) {
         return checkModel(response, "magnet") || checkModel(response, "sensor_magnet.aq2");
     }
@@ -808,73 +1362,73 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
 
     private boolean isButtonEvent(GatewayResponse response, String click) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return checkModel(response, "switch") && data.getStatus() != null && data.getStatus().equals(click);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isSwitchEvent(GatewayResponse response, String itemType, String click) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            String channel = getItemChannel(itemType);
+            GatewayDataResponse data = getData(response);
+            String channel = ItemBinding.getChannel(itemType);
             return (checkModel(response, "86sw1") || checkModel(response, "86sw2")) && data.getChannel(channel) != null && data.getChannel(channel).equals(click);
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isWallSwitchEvent(GatewayResponse response, String itemType) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            String channel = getItemChannel(itemType);
+            GatewayDataResponse data = getData(response);
+            String channel = ItemBinding.getChannel(itemType);
             return (checkModel(response, "ctrl_ln1") || checkModel(response, "ctrl_ln2")) && data.getChannel(channel) != null;
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isDualSwitchEvent(GatewayResponse response, String itemType) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
-            String channel = getItemChannel(itemType);
+            GatewayDataResponse data = getData(response);
+            String channel = ItemBinding.getChannel(itemType);
             return checkModel(response, "86sw2") && channel.equals("dual_channel") && data.getChannel(channel) != null && data.getChannel(channel).equals("both_click");
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isTemperatureEvent(GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return (checkModel(response, "sensor_ht") || checkModel(response, "weather.v1")) && data.getTemperature() != null;
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isHumidityEvent(GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return (checkModel(response, "sensor_ht") || checkModel(response, "weather.v1")) && data.getHumidity() != null;
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
 
     private boolean isPressureEvent(GatewayResponse response) {
         try {
-            GatewayDataResponse data = gson.fromJson(response.getData(), GatewayDataResponse.class);
+            GatewayDataResponse data = getData(response);
             return checkModel(response, "weather.v1") && data.getPressure() != null;
         } catch (Exception ex) {
-            logger.error(ex.toString());
+            packetLog.error(ex);
             return false;
         }
     }
@@ -916,17 +1470,64 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
      */
     public void deactivate(final int reason) {
         this.bundleContext = null;
+        //stops the refresh thread, it would keep the binding reachable and discover gateways without a socket
+        setProperlyConfigured(false);
+        outbound.stop();
         if (this.socket != null)
             socket.close();
-        if (thread != null && thread.isAlive())
+        socket = null;
+        if (thread != null && thread.isAlive()) {
             thread.interrupt();
+            joinThread(thread);
+        }
+        thread = null;
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        writeBatcher.stop();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        publisher.stop();
+        mbeans.unregisterAll();
+        gatewayAddress = null;
+        //the gateway is discovered again on the next activation
+        sid = "";
+        token = "";
+        gatewayIP = "";
+        dest_port = 9898;
         devicesList.clear();
+        pollScheduler.clear();
+        deviceStates.clear();
+        liveness.clear();
+        packetStatistics.clear();
+        roundTrips.clear();
+        packetLog.clear();
+        initialSync.clear();
+        duplicateFilter.clear();
+        histories.clear();
+        updateFilter.clear();
+        powerAggregator.clear();
+        light.clear();
 
         // deallocate resources here that are no longer needed and
         // should be reset when activating this binding again
     }
 
 
+    private void joinThread(Thread t) {
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) {
+            logger.warn("Thread {} did not stop", t.getName());
+        }
+    }
+
     /**
      * @{inheritDoc}
      */
@@ -957,71 +1558,111 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
         if (sid.equals("") || token.equals("")) {
             logger.info("Discovering gateways");
             discoverGateways();
-        } else {
-            updateDevicesStatus();
         }
     }
 
-    private void updateDevicesStatus() {
-        for (String id : devicesList.keySet()) {
-            requestRead(id);
+    private void pollDevice(String device) {
+        if (sid.equals("") || !bindingsExist()) {
+            return;
         }
+        requestRead(device, OutboundQueue.PERIODIC);
     }
 
 
     private void requestIdList() {
-        try {
-            String sendString = "{\"cmd\": \"get_id_list\"}";
-            byte[] sendData = sendString.getBytes("UTF-8");
-            InetAddress addr = InetAddress.getByName(gatewayIP);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, addr, dest_port);
+        outbound.offer(new OutboundQueue.Request(OutboundQueue.Request.GET_ID_LIST, sid, OutboundQueue.DISCOVERY));
+    }
 
-            socket.send(sendPacket);
-        } catch (IOException e) {
-            logger.error(e.toString());
-        }
+    private void requestRead(String device, int priority) {
+        outbound.offer(new OutboundQueue.Request(OutboundQueue.Request.READ, device, priority));
     }
 
-    private void requestRead(String device) {
-        try {
-            String sendString = "{\"cmd\": \"read\", \"sid\": \"" + device + "\"}";
-            byte[] sendData = sendString.getBytes("UTF-8");
-            InetAddress addr = InetAddress.getByName(gatewayIP);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, addr, dest_port);
+    private void requestWrite(String device, String[] keys, Object[] values) {
+        writeBatcher.add(device, keys, values);
+    }
 
-            socket.send(sendPacket);
-        } catch (IOException e) {
-            logger.error(e.toString());
+    private void requestWriteGateway(String[] keys, Object[] values) {
+        outbound.offer(new OutboundQueue.Request(OutboundQueue.Request.WRITE_GATEWAY, sid, keys, values, OutboundQueue.INTERACTIVE));
+    }
+
+    /**
+     * Builds and sends a queued request, called from the sender thread
+     */
+    private void sendRequest(OutboundQueue.Request request) throws IOException {
+        long start = System.nanoTime();
+        switch (request.cmd) {
+            case OutboundQueue.Request.WHOIS:
+                sendWhois();
+                break;
+            case OutboundQueue.Request.GET_ID_LIST:
+                sendIdList();
+                break;
+            case OutboundQueue.Request.READ:
+                sendRead(request.sid);
+                break;
+            case OutboundQueue.Request.WRITE:
+                sendWrite(request.sid, request.keys, request.values);
+                break;
+            case OutboundQueue.Request.WRITE_GATEWAY:
+                sendWriteGateway(request.sid, request.keys, request.values);
+                break;
+            default:
+                logger.error("Unknown outbound request: {}", request.cmd);
+                return;
         }
+        FlightRecorderEvents.requestSent(request.cmd, request.sid, request.priority, start - request.queuedAt, System.nanoTime() - start);
     }
 
-    private void requestWrite(String device, String[] keys, Object[] values) {
-        try {
-            String sendString = "{\"cmd\": \"write\", \"sid\": \"" + device + "\", \"data\": \"{" + getData(keys, values) + ", \\\"key\\\": \\\"" + getKey() + "\\\"}\"}";
-            byte[] sendData = sendString.getBytes("UTF-8");
-            InetAddress addr = InetAddress.getByName(gatewayIP);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, addr, dest_port);
-            logger.debug("Sending to device: {} message: {}", device, sendString);
-            socket.send(sendPacket);
-        } catch (IOException e) {
-            logger.error(e.toString());
+    /**
+     * Returns the gateway address, resolved only once per gateway IP
+     */
+    private InetAddress getGatewayAddress() throws IOException {
+        InetAddress addr = gatewayAddress;
+        String ip = gatewayIP;
+        if (addr == null || !ip.equals(addr.getHostAddress())) {
+            addr = InetAddress.getByName(ip);
+            gatewayAddress = addr;
         }
+        return addr;
     }
 
+    private void sendIdList() throws IOException {
+        String sendString = "{\"cmd\": \"get_id_list\"}";
+        byte[] sendData = sendString.getBytes("UTF-8");
+        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, getGatewayAddress(), dest_port);
 
-    private void requestWriteGateway(String[] keys, Object[] values) {
-        try {
-            String key = getKey();
-            //String sendString = "{\"cmd\": \"write\", \"model\": \"gateway\", \"sid\": \"" + device + "\", \"short_id\": \"0\", \"key\": \"" + key + "\", \"data\": \"{" + getData(keys, values) + ",\"key\":\\\"" + key + "\\\"}\"}";
-            String sendString = "{\"cmd\": \"write\", \"model\": \"gateway\", \"sid\": \"" + sid + "\", \"short_id\": \"0\", \"data\": \"{" + getData(keys, values) + ",\\\"key\\\":\\\"" + key + "\\\"}\"}";
-            byte[] sendData = sendString.getBytes("UTF-8");
-            InetAddress addr = InetAddress.getByName(gatewayIP);
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, addr, dest_port);
-            logger.debug("Sending to gateway: {} message: {}", sid, sendString);
-            socket.send(sendPacket);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        socket.send(sendPacket);
+    }
+
+    private void sendRead(String device) throws IOException {
+        String sendString = "{\"cmd\": \"read\", \"sid\": \"" + device + "\"}";
+        byte[] sendData = sendString.getBytes("UTF-8");
+        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, getGatewayAddress(), dest_port);
+
+        //timestamped before sending, the ack may be received before send returns
+        roundTrips.readSent(device, System.nanoTime());
+        socket.send(sendPacket);
+    }
+
+    private void sendWrite(String device, String[] keys, Object[] values) throws IOException {
+        String sendString = "{\"cmd\": \"write\", \"sid\": \"" + device + "\", \"data\": \"{" + getData(keys, values) + ", \\\"key\\\": \\\"" + getKey() + "\\\"}\"}";
+        byte[] sendData = sendString.getBytes("UTF-8");
+        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, getGatewayAddress(), dest_port);
+        logger.debug("Sending to device: {} message: {}", device, sendString);
+        roundTrips.writeSent(device, System.nanoTime());
+        socket.send(sendPacket);
+        writeBatcher.sent(device, System.currentTimeMillis());
+    }
+
+    private void sendWriteGateway(String gatewaySid, String[] keys, Object[] values) throws IOException {
+        String key = getKey();
+        //String sendString = "{\"cmd\": \"write\", \"model\": \"gateway\", \"sid\": \"" + device + "\", \"short_id\": \"0\", \"key\": \"" + key + "\", \"data\": \"{" + getData(keys, values) + ",\"key\":\\\"" + key + "\\\"}\"}";
+        String sendString = "{\"cmd\": \"write\", \"model\": \"gateway\", \"sid\": \"" + gatewaySid + "\", \"short_id\": \"0\", \"data\": \"{" + getData(keys, values) + ",\\\"key\\\":\\\"" + key + "\\\"}\"}";
+        byte[] sendData = sendString.getBytes("UTF-8");
+        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, getGatewayAddress(), dest_port);
+        logger.debug("Sending to gateway: {} message: {}", gatewaySid, sendString);
+        roundTrips.writeSent(gatewaySid, System.nanoTime());
+        socket.send(sendPacket);
     }
 
 
@@ -1079,28 +1720,29 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
             return;
         }
 
-        if ((itemType.endsWith(".light") || itemType.endsWith(".color") || itemType.endsWith(".brightness")) && sid.equals(getItemSid(itemType))) {
+        if ((itemType.endsWith(".light") || itemType.endsWith(".color") || itemType.endsWith(".brightness")) && sid.equals(ItemBinding.getSid(itemType))) {
+            //the light state is updated before the write, so a following command composes with this one
             if (command instanceof OnOffType) {
-                changeGatewayColor(command.equals(OnOffType.OFF) ? 0 : startColor);
+                long color = command.equals(OnOffType.OFF) ? 0 : startColor;
+                light.setRgb(color);
+                changeGatewayColor(color);
             } else if (command instanceof HSBType) {
                 HSBType hsb = (HSBType) command;
                 long color = getRGBColor(hsb);
                 changeGatewayColor(color);
             } else {
-                if (rgb == 0)
-                    return;
-
                 //Percent type
                 PercentType brightness = (PercentType) command;
-                long currentBrightness = (rgb / 65536 / 256);
-                long color = rgb - (currentBrightness * 65536 * 256) + brightness.longValue() * 65536 * 256;
+                long color = light.setBrightness(brightness.intValue());
+                if (color == 0)
+                    return;
                 changeGatewayColor(color);
             }
             return;
         }
 
         if (itemType.endsWith(".plug")) {
-            String sid = getItemSid(itemType);
+            String sid = ItemBinding.getSid(itemType);
             requestWrite(sid, new String[]{"status"}, new Object[]{command.toString().toLowerCase()});
         /*} else if (itemType.endsWith(".channel_0") || itemType.endsWith(".channel_1")) {
             //86ctrl_neutral1/2
@@ -1121,46 +1763,19 @@ public class XiaomiGatewayBinding extends AbstractActiveBinding<XiaomiGatewayBin
     }
 
     private long getRGBColor(HSBType hsb) {
-        long brightness = rgb / 65535 / 256;
-        long red = (long) (hsb.getRed().floatValue() / 100 * 255);
-        long green = (long) (hsb.getGreen().floatValue() / 100 * 255);
-        long blue = (long) (hsb.getBlue().floatValue() / 100 * 255);
-        return 65536 * 256 * brightness + 65536 * red + 256 * green + blue;
+        int red = (int) (hsb.getRed().floatValue() / 100 * 255);
+        int green = (int) (hsb.getGreen().floatValue() / 100 * 255);
+        int blue = (int) (hsb.getBlue().floatValue() / 100 * 255);
+        return light.setColor(red, green, blue);
     }
 
     private void changeGatewayColor(long color) {
         requestWriteGateway(new String[]{"rgb"}, new Object[]{color});
     }
 
-    private String getItemEvent(String itemType) {
-        if (!itemType.contains("."))
-            return "";
-        int pos = itemType.lastIndexOf('.');
-        return itemType.substring(pos + 1);
-    }
-
-    private String getItemChannel(String itemName) {
-        if (!itemName.contains("."))
-            return "";
-        String[] parts = itemName.split("\\.");
-        if (parts.length > 2)
-            return parts[1];
-        else
-            return parts[0];
-    }
-
-    private String getItemSid(String itemType) {
-        if (!itemType.contains("."))
-            return "";
-        return itemType.split("\\.")[0];
-    }
-
     private String getItemType(String itemName) {
-        for (final XiaomiGatewayBindingProvider provider : providers) {
-            if (provider.getItemNames().contains(itemName))
-                return provider.getItemType(itemName);
-        }
-        return "";
+        ItemBinding binding = index.getItem(itemName);
+        return binding != null ? binding.type : "";
     }
 
     /**
@@ -13,10 +13,61 @@ class XiaomiGatewayBindingConfig implements BindingConfig {
         return type;
     }
 
+    public String getDerive() {
+        return derive;
+    }
+
+    public void setDerive(String derive) {
+        this.derive = derive;
+    }
+
+    public String getAggregate() {
+        return aggregate;
+    }
+
+    public void setAggregate(String aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public double getDelta() {
+        return delta;
+    }
+
+    public void setDelta(double delta) {
+        this.delta = delta;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public void setMinInterval(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
     // put member fields here which holds the parsed values
     private String type;
 
+    //derived value (avg, min, max, rate) computed from the sensor history over the window in ms
+    private String derive = null;
+    private long window = 600000;
+
+    //plug power aggregated (min, max, mean, energy) over consecutive windows, published when a window closes
+    private String aggregate = null;
+
+    //updates within the deadband or sooner than minInterval ms after the last update are suppressed
+    private double delta = 0;
+    private long minInterval = 0;
+
     public XiaomiGatewayBindingConfig(String type) {
         this.type = type;
     }
-}
\ No newline at end of file
+}
@@ -14,6 +14,10 @@ import org.openhab.core.library.items.*;
 import org.openhab.model.item.binding.AbstractGenericBindingProvider;
 import org.openhab.model.item.binding.BindingConfigParseException;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 
 /**
  * This class is responsible for parsing the binding configuration.
@@ -23,6 +27,12 @@ import org.openhab.model.item.binding.BindingConfigParseException;
  */
 public class XiaomiGatewayGenericBindingProvider extends AbstractGenericBindingProvider implements XiaomiGatewayBindingProvider {
 
+	//events with a numeric value kept in the sensor history
+	static final Set<String> NUMERIC_EVENTS = new HashSet<String>(Arrays.asList("temperature", "humidity", "pressure", "voltage", "load_power", "power_consumed"));
+	static final Set<String> DERIVE_FUNCTIONS = new HashSet<String>(Arrays.asList("avg", "min", "max", "rate"));
+	static final Set<String> AGGREGATE_EVENTS = new HashSet<String>(Arrays.asList("load_power", "power_consumed"));
+	static final Set<String> AGGREGATE_FUNCTIONS = new HashSet<String>(Arrays.asList("min", "max", "mean", "energy"));
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -47,17 +57,146 @@ public class XiaomiGatewayGenericBindingProvider extends AbstractGenericBindingP
 		return config != null ? (config.getType()) : null;
 	}
 
+	public String getItemDerive(String itemName) {
+		final XiaomiGatewayBindingConfig config = (XiaomiGatewayBindingConfig) this.bindingConfigs.get(itemName);
+		return config != null ? (config.getDerive()) : null;
+	}
+
+	public long getItemWindow(String itemName) {
+		final XiaomiGatewayBindingConfig config = (XiaomiGatewayBindingConfig) this.bindingConfigs.get(itemName);
+		return config != null ? (config.getWindow()) : 0;
+	}
+
+	public String getItemAggregate(String itemName) {
+		final XiaomiGatewayBindingConfig config = (XiaomiGatewayBindingConfig) this.bindingConfigs.get(itemName);
+		return config != null ? (config.getAggregate()) : null;
+	}
+
+	public double getItemDelta(String itemName) {
+		final XiaomiGatewayBindingConfig config = (XiaomiGatewayBindingConfig) this.bindingConfigs.get(itemName);
+		return config != null ? (config.getDelta()) : 0;
+	}
+
+	public long getItemMinInterval(String itemName) {
+		final XiaomiGatewayBindingConfig config = (XiaomiGatewayBindingConfig) this.bindingConfigs.get(itemName);
+		return config != null ? (config.getMinInterval()) : 0;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
 	public void processBindingConfiguration(String context, Item item, String bindingConfig) throws BindingConfigParseException {
 		super.processBindingConfiguration(context, item, bindingConfig);
-		XiaomiGatewayBindingConfig config = new XiaomiGatewayBindingConfig(bindingConfig);
-		
-		//parse bindingconfig here ...
-		
+		XiaomiGatewayBindingConfig config = parseBindingConfig(item, bindingConfig.trim());
 		addBindingConfig(item, config);		
 	}
 
+	/**
+	 * Parses <sid>.<event> optionally followed by parameters, e.g. 158d0001182814.temperature[derive=avg,window=10m]
+	 * or 158d00012944b3.load_power[delta=2,minInterval=10s] or 158d00012944b3.load_power[aggregate=mean,window=15m]
+	 */
+	private XiaomiGatewayBindingConfig parseBindingConfig(Item item, String bindingConfig) throws BindingConfigParseException {
+		int pos = bindingConfig.indexOf('[');
+		if (pos < 0) {
+			return new XiaomiGatewayBindingConfig(bindingConfig);
+		}
+		if (!bindingConfig.endsWith("]")) {
+			throw new BindingConfigParseException("item '" + item.getName()
+					+ "' has malformed binding config '" + bindingConfig + "' - expected <sid>.<event>[name=value,...]");
+		}
+
+		XiaomiGatewayBindingConfig config = new XiaomiGatewayBindingConfig(bindingConfig.substring(0, pos).trim());
+		for (String param : bindingConfig.substring(pos + 1, bindingConfig.length() - 1).split(",")) {
+			String[] pair = param.split("=", 2);
+			if (pair.length != 2) {
+				throw new BindingConfigParseException("item '" + item.getName() + "' has malformed parameter '" + param + "'");
+			}
+			String name = pair[0].trim();
+			String value = pair[1].trim();
+			switch (name) {
+				case "derive":
+					if (!DERIVE_FUNCTIONS.contains(value)) {
+						throw new BindingConfigParseException("item '" + item.getName() + "' has unknown derive function '" + value
+								+ "', only avg, min, max and rate are allowed");
+					}
+					config.setDerive(value);
+					break;
+				case "aggregate":
+					if (!AGGREGATE_FUNCTIONS.contains(value)) {
+						throw new BindingConfigParseException("item '" + item.getName() + "' has unknown aggregate function '" + value
+								+ "', only min, max, mean and energy are allowed");
+					}
+					config.setAggregate(value);
+					break;
+				case "window":
+					config.setWindow(parseDuration(item, name, value));
+					break;
+				case "delta":
+					try {
+						config.setDelta(Double.parseDouble(value));
+					} catch (NumberFormatException e) {
+						throw new BindingConfigParseException("item '" + item.getName() + "' has invalid delta '" + value + "'");
+					}
+					break;
+				case "minInterval":
+					config.setMinInterval(parseDuration(item, name, value));
+					break;
+				default:
+					throw new BindingConfigParseException("item '" + item.getName() + "' has unknown parameter '" + name + "'");
+			}
+		}
+
+		if (!NUMERIC_EVENTS.contains(getEvent(config.getType()))) {
+			throw new BindingConfigParseException("item '" + item.getName() + "' has parameters for '" + config.getType()
+					+ "', only temperature, humidity, pressure, voltage, load_power and power_consumed support them");
+		}
+		if (config.getAggregate() != null) {
+			if (!AGGREGATE_EVENTS.contains(getEvent(config.getType()))) {
+				throw new BindingConfigParseException("item '" + item.getName() + "' has aggregate for '" + config.getType()
+						+ "', only load_power and power_consumed support it");
+			}
+			if (config.getDerive() != null) {
+				throw new BindingConfigParseException("item '" + item.getName() + "' has both derive and aggregate, please use only one of them");
+			}
+			if (config.getWindow() < 1000) {
+				throw new BindingConfigParseException("item '" + item.getName() + "' has aggregate window shorter than 1s");
+			}
+		}
+		return config;
+	}
+
+	private static long parseDuration(Item item, String name, String value) throws BindingConfigParseException {
+		try {
+			return parseDuration(value);
+		} catch (NumberFormatException e) {
+			throw new BindingConfigParseException("item '" + item.getName() + "' has invalid " + name + " '" + value + "'");
+		}
+	}
+
+	/**
+	 * Parses a duration like 500ms, 10s, 5m, 1h or a plain number of milliseconds
+	 */
+	static long parseDuration(String value) {
+		long unit = 1;
+		String number = value;
+		if (value.endsWith("ms")) {
+			number = value.substring(0, value.length() - 2);
+		} else if (value.endsWith("s")) {
+			unit = 1000;
+			number = value.substring(0, value.length() - 1);
+		} else if (value.endsWith("m")) {
+			unit = 60000;
+			number = value.substring(0, value.length() - 1);
+		} else if (value.endsWith("h")) {
+			unit = 3600000;
+			number = value.substring(0, value.length() - 1);
+		}
+		return Long.parseLong(number.trim()) * unit;
+	}
+
+	private static String getEvent(String type) {
+		return type.substring(type.lastIndexOf('.') + 1);
+	}
+
 }
@@ -1,10 +1,41 @@
 package org.openhab.binding.xiaomigateway.model;
 
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
 
 public class GatewayDataResponse {
+    //field mask bits used to decode only the fields needed by bound items
+    public static final int VOLTAGE = 1;
+    public static final int STATUS = 1 << 1;
+    public static final int TEMPERATURE = 1 << 2;
+    public static final int HUMIDITY = 1 << 3;
+    public static final int PRESSURE = 1 << 4;
+    public static final int DENSITY = 1 << 5;
+    public static final int IP = 1 << 6;
+    public static final int RGB = 1 << 7;
+    public static final int ILLUMINATION = 1 << 8;
+    public static final int INUSE = 1 << 9;
+    public static final int POWER_CONSUMED = 1 << 10;
+    public static final int LOAD_POWER = 1 << 11;
+    public static final int CHANNEL_0 = 1 << 12;
+    public static final int CHANNEL_1 = 1 << 13;
+    public static final int DUAL_CHANNEL = 1 << 14;
+    public static final int ROTATE = 1 << 15;
+    public static final int ALL_FIELDS = (1 << 16) - 1;
+
+    //numeric fields present in the data (VOLTAGE, RGB, ILLUMINATION bits)
+    private int present = 0;
+
     //common
-    private Number voltage;
+    private long voltage;
     private String status;
 
     //Temp sensor
@@ -17,8 +48,8 @@ public class GatewayDataResponse {
 
     //Gateway
     private String ip;
-    private Number rgb;
-    private Number illumination;
+    private long rgb;
+    private long illumination;
 
     //Plug
     private String inuse;
@@ -38,7 +69,11 @@ public class GatewayDataResponse {
     //cube
     private String rotate;
 
-    public Number getVoltage() {
+    public boolean hasVoltage() {
+        return (present & VOLTAGE) != 0;
+    }
+
+    public long getVoltage() {
         return voltage;
     }
 
@@ -58,11 +93,19 @@ public class GatewayDataResponse {
         return ip;
     }
 
-    public Number getRgb() {
+    public boolean hasRgb() {
+        return (present & RGB) != 0;
+    }
+
+    public long getRgb() {
         return rgb;
     }
 
-    public Number getIllumination() {
+    public boolean hasIllumination() {
+        return (present & ILLUMINATION) != 0;
+    }
+
+    public long getIllumination() {
         return illumination;
     }
 
@@ -139,4 +182,210 @@ public class GatewayDataResponse {
     public String getDensity() {
         return density;
     }
+
+    /**
+     * Decodes only the fields selected by the field mask, all other keys are skipped
+     */
+    public static GatewayDataResponse fromJson(String json, int fieldMask) {
+        try {
+            return read(new JsonReader(new StringReader(json)), fieldMask);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static GatewayDataResponse read(JsonReader in, int fieldMask) throws IOException {
+        GatewayDataResponse data = new GatewayDataResponse();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            int field = getField(name);
+            if ((field & fieldMask) == 0 || in.peek() == JsonToken.NULL) {
+                in.skipValue();
+                continue;
+            }
+            switch (field) {
+                case VOLTAGE:
+                    data.voltage = in.nextLong();
+                    data.present |= VOLTAGE;
+                    break;
+                case RGB:
+                    data.rgb = in.nextLong();
+                    data.present |= RGB;
+                    break;
+                case ILLUMINATION:
+                    data.illumination = in.nextLong();
+                    data.present |= ILLUMINATION;
+                    break;
+                default:
+                    data.setString(field, in.nextString());
+            }
+        }
+        in.endObject();
+        return data;
+    }
+
+    /**
+     * Reads all values of the data object as strings into the map, replacing previous values of the same keys
+     */
+    public static void readValues(String json, Map<String, String> values) {
+        try {
+            JsonReader in = new JsonReader(new StringReader(json));
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                JsonToken token = in.peek();
+                if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                    values.put(name, in.nextString());
+                } else if (token == JsonToken.BOOLEAN) {
+                    values.put(name, String.valueOf(in.nextBoolean()));
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static int getField(String name) {
+        switch (name) {
+            case "voltage":
+                return VOLTAGE;
+            case "status":
+                return STATUS;
+            case "temperature":
+                return TEMPERATURE;
+            case "humidity":
+                return HUMIDITY;
+            case "pressure":
+                return PRESSURE;
+            case "density":
+                return DENSITY;
+            case "ip":
+                return IP;
+            case "rgb":
+                return RGB;
+            case "illumination":
+                return ILLUMINATION;
+            case "inuse":
+                return INUSE;
+            case "power_consumed":
+                return POWER_CONSUMED;
+            case "load_power":
+                return LOAD_POWER;
+            case "channel_0":
+                return CHANNEL_0;
+            case "channel_1":
+                return CHANNEL_1;
+            case "dual_channel":
+                return DUAL_CHANNEL;
+            case "rotate":
+                return ROTATE;
+            default:
+                return 0;
+        }
+    }
+
+    private void setString(int field, String value) {
+        switch (field) {
+            case STATUS:
+                status = value;
+                break;
+            case TEMPERATURE:
+                temperature = value;
+                break;
+            case HUMIDITY:
+                humidity = value;
+                break;
+            case PRESSURE:
+                pressure = value;
+                break;
+            case DENSITY:
+                density = value;
+                break;
+            case IP:
+                ip = value;
+                break;
+            case INUSE:
+                inuse = value;
+                break;
+            case POWER_CONSUMED:
+                powerConsumed = value;
+                break;
+            case LOAD_POWER:
+                loadPower = value;
+                break;
+            case CHANNEL_0:
+                channel0 = value;
+                break;
+            case CHANNEL_1:
+                channel1 = value;
+                break;
+            case DUAL_CHANNEL:
+                dualChannel = value;
+                break;
+            case ROTATE:
+                rotate = value;
+                break;
+        }
+    }
+
+    /**
+     * Gson type adapter reading the data object without reflection
+     */
+    public static class Adapter extends TypeAdapter<GatewayDataResponse> {
+
+        @Override
+        public GatewayDataResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            try {
+                return GatewayDataResponse.read(in, ALL_FIELDS);
+            } catch (IllegalStateException | NumberFormatException e) {
+                throw new JsonSyntaxException(e);
+            }
+        }
+
+        @Override
+        public void write(JsonWriter out, GatewayDataResponse data) throws IOException {
+            if (data == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            if (data.hasVoltage()) {
+                out.name("voltage").value(data.voltage);
+            }
+            if (data.hasRgb()) {
+                out.name("rgb").value(data.rgb);
+            }
+            if (data.hasIllumination()) {
+                out.name("illumination").value(data.illumination);
+            }
+            writeString(out, "status", data.status);
+            writeString(out, "temperature", data.temperature);
+            writeString(out, "humidity", data.humidity);
+            writeString(out, "pressure", data.pressure);
+            writeString(out, "density", data.density);
+            writeString(out, "ip", data.ip);
+            writeString(out, "inuse", data.inuse);
+            writeString(out, "power_consumed", data.powerConsumed);
+            writeString(out, "load_power", data.loadPower);
+            writeString(out, "channel_0", data.channel0);
+            writeString(out, "channel_1", data.channel1);
+            writeString(out, "dual_channel", data.dualChannel);
+            writeString(out, "rotate", data.rotate);
+            out.endObject();
+        }
+
+        private void writeString(JsonWriter out, String name, String value) throws IOException {
+            if (value != null) {
+                out.name(name).value(value);
+            }
+        }
+    }
 }
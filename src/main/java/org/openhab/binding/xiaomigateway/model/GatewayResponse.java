@@ -1,5 +1,13 @@
 package org.openhab.binding.xiaomigateway.model;
 
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
 public class GatewayResponse {
     private String cmd;
     private String model;
@@ -10,6 +18,9 @@ public class GatewayResponse {
     private String token;
     private String data;
 
+    //data decoded once per packet, not part of the JSON
+    private transient GatewayDataResponse decodedData;
+
     public String getCmd() {
         return cmd;
     }
@@ -37,4 +48,89 @@ public class GatewayResponse {
     public String getIp() {
         return ip;
     }
+
+    public GatewayDataResponse getDecodedData() {
+        return decodedData;
+    }
+
+    public void setDecodedData(GatewayDataResponse decodedData) {
+        this.decodedData = decodedData;
+    }
+
+    /**
+     * Gson type adapter reading the message envelope without reflection, unknown keys are skipped
+     */
+    public static class Adapter extends TypeAdapter<GatewayResponse> {
+
+        @Override
+        public GatewayResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            GatewayResponse response = new GatewayResponse();
+            try {
+                in.beginObject();
+                while (in.hasNext()) {
+                    String name = in.nextName();
+                    if (in.peek() == JsonToken.NULL) {
+                        in.skipValue();
+                        continue;
+                    }
+                    switch (name) {
+                        case "cmd":
+                            response.cmd = in.nextString();
+                            break;
+                        case "model":
+                            response.model = in.nextString();
+                            break;
+                        case "sid":
+                            response.sid = in.nextString();
+                            break;
+                        case "port":
+                            response.port = in.nextString();
+                            break;
+                        case "ip":
+                            response.ip = in.nextString();
+                            break;
+                        case "token":
+                            response.token = in.nextString();
+                            break;
+                        case "data":
+                            response.data = in.nextString();
+                            break;
+                        default:
+                            in.skipValue();
+                    }
+                }
+                in.endObject();
+            } catch (IllegalStateException e) {
+                throw new JsonSyntaxException(e);
+            }
+            return response;
+        }
+
+        @Override
+        public void write(JsonWriter out, GatewayResponse response) throws IOException {
+            if (response == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            writeString(out, "cmd", response.cmd);
+            writeString(out, "model", response.model);
+            writeString(out, "sid", response.sid);
+            writeString(out, "port", response.port);
+            writeString(out, "ip", response.ip);
+            writeString(out, "token", response.token);
+            writeString(out, "data", response.data);
+            out.endObject();
+        }
+
+        private void writeString(JsonWriter out, String name, String value) throws IOException {
+            if (value != null) {
+                out.name(name).value(value);
+            }
+        }
+    }
 }
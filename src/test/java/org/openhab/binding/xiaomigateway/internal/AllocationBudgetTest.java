@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.junit.Assert.fail;
+
+/**
+ * Pushes the packet corpus (packets.txt) through decode and dispatch of an offline binding with the items of items.txt
+ * and checks the bytes allocated per packet against the budget of its packet type (cmd/model) in allocation-budgets.properties.
+ * A packet is measured after a warm-up, the median of several runs is compared, the largest median of a type counts.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public class AllocationBudgetTest {
+
+    private static final int WARMUP_PASSES = 5000;
+    private static final int MEASURED_PASSES = 101;
+    private static final long PACKET_INTERVAL = 1000;
+
+    private com.sun.management.ThreadMXBean threads;
+    private BindingHarness harness;
+    private List<String> packets;
+    private long timestamp = System.currentTimeMillis();
+
+    @Before
+    public void setUp() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("HotSpot ThreadMXBean required", bean instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue("Allocated memory per thread not supported", threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        packets = BindingHarness.readLines(getClass().getResourceAsStream("packets.txt"));
+        harness = new BindingHarness(request -> {
+        });
+        harness.addItems(getClass().getResourceAsStream("items.txt"));
+        harness.startOffline();
+    }
+
+    @After
+    public void tearDown() {
+        if (harness != null) {
+            harness.stop();
+        }
+    }
+
+    @Test
+    public void packetsStayWithinTheirAllocationBudget() throws Exception {
+        Properties budgets = new Properties();
+        budgets.load(getClass().getResourceAsStream("allocation-budgets.properties"));
+
+        for (int i = 0; i < WARMUP_PASSES; i++) {
+            for (String packet : packets) {
+                harness.process(packet, nextTimestamp());
+            }
+        }
+
+        long[][] samples = new long[packets.size()][MEASURED_PASSES];
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < MEASURED_PASSES; i++) {
+            for (int p = 0; p < packets.size(); p++) {
+                String packet = packets.get(p);
+                long time = nextTimestamp();
+                long before = threads.getThreadAllocatedBytes(threadId);
+                harness.process(packet, time);
+                samples[p][i] = threads.getThreadAllocatedBytes(threadId) - before;
+            }
+        }
+
+        Map<String, Long> allocated = new TreeMap<String, Long>();
+        for (int p = 0; p < packets.size(); p++) {
+            long[] sorted = samples[p].clone();
+            Arrays.sort(sorted);
+            long median = sorted[sorted.length / 2];
+            String type = getType(packets.get(p));
+            Long previous = allocated.get(type);
+            allocated.put(type, previous != null ? Math.max(previous, median) : median);
+        }
+
+        List<String> failures = new ArrayList<String>();
+        for (Map.Entry<String, Long> entry : allocated.entrySet()) {
+            String budget = budgets.getProperty(entry.getKey());
+            if (budget == null) {
+                failures.add(entry.getKey() + ": no budget, allocated " + entry.getValue() + " bytes");
+            } else if (entry.getValue() > Long.parseLong(budget.trim())) {
+                failures.add(entry.getKey() + ": allocated " + entry.getValue() + " bytes, budget " + budget.trim() + " bytes");
+            }
+        }
+        if (!failures.isEmpty()) {
+            fail("Packets over their allocation budget " + failures + ", all packet types: " + allocated);
+        }
+    }
+
+    private long nextTimestamp() {
+        //apart enough for the duplicate filter and the sensor history
+        timestamp += PACKET_INTERVAL;
+        return timestamp;
+    }
+
+    private static String getType(String packet) {
+        return getField(packet, "cmd") + "/" + getField(packet, "model");
+    }
+
+    private static String getField(String packet, String name) {
+        String prefix = "\"" + name + "\":\"";
+        int start = packet.indexOf(prefix) + prefix.length();
+        return packet.substring(start, packet.indexOf('"', start));
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.openhab.core.events.EventPublisher;
+import org.openhab.core.items.GenericItem;
+import org.openhab.core.items.ItemNotFoundException;
+import org.openhab.core.items.ItemRegistry;
+import org.openhab.core.library.items.ColorItem;
+import org.openhab.core.library.items.ContactItem;
+import org.openhab.core.library.items.DimmerItem;
+import org.openhab.core.library.items.NumberItem;
+import org.openhab.core.library.items.SwitchItem;
+import org.openhab.core.types.Command;
+import org.openhab.core.types.State;
+import org.openhab.model.item.binding.BindingConfigParseException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A binding with an in-memory item registry and event publisher, used by the tests and by {@link JournalReplay}.
+ * After {@link #startOffline()} the binding has no socket: packets are fed directly to the packet processing and
+ * requests to the gateway are handed to a sender stub. After {@link #activate} the binding opens its socket
+ * as it does when started by the SCR.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class BindingHarness {
+
+    static final String CONTEXT = "test.items";
+
+    final XiaomiGatewayBinding binding;
+    final XiaomiGatewayGenericBindingProvider provider = new XiaomiGatewayGenericBindingProvider();
+
+    private final Map<String, GenericItem> items = new ConcurrentHashMap<String, GenericItem>();
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private volatile UpdateListener listener;
+
+    /**
+     * Is called by the event publisher for every item update
+     */
+    interface UpdateListener {
+        void updated(String itemName, State state);
+    }
+
+    /**
+     * Creates a harness whose binding sends its requests through the socket
+     */
+    BindingHarness() {
+        this(new XiaomiGatewayBinding());
+    }
+
+    BindingHarness(OutboundQueue.RequestSender sender) {
+        this(new XiaomiGatewayBinding(sender));
+    }
+
+    private BindingHarness(XiaomiGatewayBinding binding) {
+        this.binding = binding;
+        binding.setItemRegistry(itemRegistry());
+        binding.setEventPublisher(eventPublisher());
+        binding.addBindingProvider(provider);
+    }
+
+    void addItem(GenericItem item, String bindingConfig) throws BindingConfigParseException {
+        items.put(item.getName(), item);
+        provider.processBindingConfiguration(CONTEXT, item, bindingConfig);
+    }
+
+    /**
+     * Adds the items of an items file with one item per line: &lt;type&gt; &lt;name&gt; &lt;binding config&gt;
+     */
+    void addItems(InputStream in) throws IOException, BindingConfigParseException {
+        for (String line : readLines(in)) {
+            String[] item = line.split("\\s+", 3);
+            if (item.length != 3) {
+                throw new IllegalArgumentException("Expected <type> <name> <binding config>: " + line);
+            }
+            addItem(createItem(item[0], item[1]), item[2]);
+        }
+    }
+
+    void setUpdateListener(UpdateListener listener) {
+        this.listener = listener;
+    }
+
+    void startOffline() {
+        startOffline(new HashMap<String, Object>());
+    }
+
+    void startOffline(Map<String, Object> configuration) {
+        binding.startOffline(configuration);
+    }
+
+    /**
+     * Activates the binding like the SCR, it receives on the given port (0 for an ephemeral port)
+     */
+    void activate(int receivePort, Map<String, Object> configuration) {
+        binding.setReceivePort(receivePort);
+        binding.activate(null, configuration);
+    }
+
+    int getReceivePort() {
+        return binding.getReceivePort();
+    }
+
+    void stop() {
+        binding.deactivate(0);
+    }
+
+    void process(String packet, long timestamp) {
+        binding.processPacket(packet, timestamp);
+    }
+
+    /**
+     * Sends a command to an item like the event bus
+     */
+    void command(String itemName, Command command) {
+        binding.receiveCommand(itemName, command);
+    }
+
+    State getState(String itemName) {
+        GenericItem item = items.get(itemName);
+        return item != null ? item.getState() : null;
+    }
+
+    long getUpdates() {
+        return updates.get();
+    }
+
+    long getCommands() {
+        return commands.get();
+    }
+
+    /**
+     * Reads the lines of a text resource skipping empty lines and # comments, e.g. a packet corpus
+     */
+    static List<String> readLines(InputStream in) throws IOException {
+        if (in == null) {
+            throw new IOException("Resource not found");
+        }
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    static GenericItem createItem(String type, String name) {
+        switch (type) {
+            case "Switch":
+                return new SwitchItem(name);
+            case "Contact":
+                return new ContactItem(name);
+            case "Number":
+                return new NumberItem(name);
+            case "Dimmer":
+                return new DimmerItem(name);
+            case "Color":
+                return new ColorItem(name);
+            default:
+                throw new IllegalArgumentException("Unsupported item type: " + type);
+        }
+    }
+
+    private ItemRegistry itemRegistry() {
+        return (ItemRegistry) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{ItemRegistry.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getItem") && args != null && args.length == 1) {
+                        GenericItem item = items.get((String) args[0]);
+                        if (item == null) {
+                            throw new ItemNotFoundException((String) args[0]);
+                        }
+                        return item;
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+    }
+
+    private EventPublisher eventPublisher() {
+        return (EventPublisher) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{EventPublisher.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("postUpdate")) {
+                        //the event bus sets the state of the item
+                        GenericItem item = items.get((String) args[0]);
+                        if (item != null) {
+                            item.setState((State) args[1]);
+                        }
+                        updates.incrementAndGet();
+                        UpdateListener l = listener;
+                        if (l != null) {
+                            l.updated((String) args[0], (State) args[1]);
+                        }
+                    } else if (method.getName().equals("sendCommand") || method.getName().equals("postCommand")) {
+                        commands.incrementAndGet();
+                    }
+                    return defaultValue(method.getReturnType());
+                });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        return null;
+    }
+}
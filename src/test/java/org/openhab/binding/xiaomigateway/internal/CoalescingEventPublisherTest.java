@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.core.events.EventPublisher;
+import org.openhab.core.library.types.DecimalType;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class CoalescingEventPublisherTest {
+
+    private final CoalescingEventPublisher publisher = new CoalescingEventPublisher(16);
+    private final List<String> published = new ArrayList<String>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        publisher.setEventPublisher((EventPublisher) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[]{EventPublisher.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("postUpdate")) {
+                        //holds the publisher thread on the first update until the test has queued its updates
+                        release.await(5, TimeUnit.SECONDS);
+                        synchronized (published) {
+                            published.add(args[0] + "=" + args[1]);
+                        }
+                    }
+                    return null;
+                }));
+        publisher.start();
+    }
+
+    @After
+    public void tearDown() {
+        publisher.stop();
+    }
+
+    @Test
+    public void newerBatchTakesOverPendingItems() throws Exception {
+        publisher.postUpdate("Blocker", new DecimalType(0));
+        Thread.sleep(100);
+        publisher.postUpdates(batch("Temperature", 21, "Humidity", 45));
+        publisher.postUpdates(batch("Temperature", 22, "Voltage", 3));
+        release.countDown();
+
+        assertEquals(Arrays.asList("Blocker=0", "Humidity=45", "Temperature=22", "Voltage=3"), awaitPublished(4));
+        assertEquals(1, publisher.getCoalescedUpdates());
+        assertEquals(2, publisher.getPublishedBatches());
+    }
+
+    @Test
+    public void singleUpdateTakesOverPendingBatchItem() throws Exception {
+        publisher.postUpdate("Blocker", new DecimalType(0));
+        Thread.sleep(100);
+        publisher.postUpdates(batch("Temperature", 21, "Humidity", 45));
+        publisher.postUpdate("Temperature", new DecimalType(23));
+        publisher.postUpdate("Temperature", new DecimalType(24));
+        release.countDown();
+
+        assertEquals(Arrays.asList("Blocker=0", "Humidity=45", "Temperature=24"), awaitPublished(3));
+        assertEquals(2, publisher.getCoalescedUpdates());
+    }
+
+    private static CoalescingEventPublisher.UpdateBatch batch(String item1, int value1, String item2, int value2) {
+        CoalescingEventPublisher.UpdateBatch batch = new CoalescingEventPublisher.UpdateBatch(System.currentTimeMillis());
+        batch.add(item1, new DecimalType(value1));
+        batch.add(item2, new DecimalType(value2));
+        return batch;
+    }
+
+    private List<String> awaitPublished(int count) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < end) {
+            synchronized (published) {
+                if (published.size() >= count) {
+                    break;
+                }
+            }
+            Thread.sleep(10);
+        }
+        //nothing more is published
+        Thread.sleep(100);
+        synchronized (published) {
+            assertTrue("Published " + published, published.size() >= count);
+            return new ArrayList<String>(published);
+        }
+    }
+}
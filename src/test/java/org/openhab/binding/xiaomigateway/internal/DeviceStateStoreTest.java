@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.Test;
+import org.openhab.binding.xiaomigateway.XiaomiDeviceState;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class DeviceStateStoreTest {
+
+    private final DeviceStateStore store = new DeviceStateStore();
+
+    @Test
+    public void mergesDataOfAllMessages() {
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"temperature\":\"2150\"}", 1000);
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"humidity\":\"4500\"}", 2000);
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", null, 3000);
+
+        XiaomiDeviceState state = store.get("158d0001182814");
+        assertEquals("2150", state.getValue("temperature"));
+        assertEquals("4500", state.getValue("humidity"));
+        assertEquals(3000, state.getLastSeen());
+        assertEquals(2000, state.getLastUpdate());
+    }
+
+    @Test
+    public void newerValueReplacesOlder() {
+        for (int i = 0; i < 40; i++) {
+            store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"temperature\":\"" + i + "\"}", i);
+        }
+
+        assertEquals("39", store.get("158d0001182814").getValue("temperature"));
+    }
+
+    @Test
+    public void returnsTheSameStateUntilTheNextMessage() {
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"temperature\":\"2150\"}", 1000);
+        XiaomiDeviceState state = store.get("158d0001182814");
+
+        assertSame(state, store.get("158d0001182814"));
+        assertSame(state, store.getAll().get("158d0001182814"));
+
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"temperature\":\"2200\"}", 2000);
+        assertEquals("2150", state.getValue("temperature"));
+        assertEquals("2200", store.get("158d0001182814").getValue("temperature"));
+    }
+
+    @Test
+    public void skipsMalformedData() {
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"temperature\":\"2150\"}", 1000);
+        store.update("158d0001182814", "sensor_ht", "f0b429b0a1b2", "{\"humid", 2000);
+
+        assertEquals("2150", store.get("158d0001182814").getValue("temperature"));
+    }
+
+    @Test
+    public void unknownDeviceHasNoState() {
+        assertNull(store.get("158d0001182814"));
+        assertNull(store.get(null));
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class DuplicateFilterTest {
+
+    private static final String MAGNET = "158d000112fb5d";
+    private static final String PLUG = "158d00010b3c4a";
+    private static final String OPEN = "{\"status\":\"open\"}";
+    private static final String CLOSE = "{\"status\":\"close\"}";
+
+    private final DuplicateFilter filter = new DuplicateFilter(1000);
+
+    @Test
+    public void dropsARepeatedReport() {
+        assertFalse(filter.isDuplicate(MAGNET, "report", OPEN, 0));
+        assertTrue(filter.isDuplicate(MAGNET, "report", OPEN, 5));
+        assertTrue(filter.isDuplicate(MAGNET, "report", OPEN, 10));
+        assertEquals(2, filter.getDuplicates());
+    }
+
+    @Test
+    public void keepsAReportReturningToAnOlderValue() {
+        assertFalse(filter.isDuplicate(MAGNET, "report", OPEN, 0));
+        assertFalse(filter.isDuplicate(MAGNET, "report", CLOSE, 100));
+        assertFalse(filter.isDuplicate(MAGNET, "report", OPEN, 200));
+        assertTrue(filter.isDuplicate(MAGNET, "report", OPEN, 205));
+        assertEquals(1, filter.getDuplicates());
+    }
+
+    @Test
+    public void comparesOnlyWithTheLastReportOfTheSameSid() {
+        String on = "{\"status\":\"on\"}";
+        assertFalse(filter.isDuplicate(MAGNET, "report", OPEN, 0));
+        assertFalse(filter.isDuplicate(PLUG, "report", on, 1));
+        assertTrue(filter.isDuplicate(MAGNET, "report", OPEN, 2));
+        assertTrue(filter.isDuplicate(PLUG, "report", on, 3));
+        assertFalse(filter.isDuplicate(PLUG, "report", OPEN, 4));
+    }
+
+    @Test
+    public void forgetsReportsAfterTheTtl() {
+        assertFalse(filter.isDuplicate(MAGNET, "report", OPEN, 0));
+        assertFalse(filter.isDuplicate(MAGNET, "report", OPEN, 1000));
+        assertTrue(filter.isDuplicate(MAGNET, "report", OPEN, 1500));
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+
+/**
+ * Replays a packet journal recorded by the binding through the packet processing of a {@link BindingHarness},
+ * without a socket. Requests the binding would send to the gateway are printed, nothing is sent.
+ * This is a tool for the test classpath, it is not part of the bundle.
+ * <p>
+ * Usage: JournalReplay &lt;journal&gt; [speed] [items file]
+ * <br>
+ * The items file has one item per line: &lt;type&gt; &lt;name&gt; &lt;binding config&gt;,
+ * e.g. Number Temperature 158d0001182814.temperature
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public class JournalReplay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: JournalReplay <journal> [speed] [items file]");
+            System.exit(1);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+
+        BindingHarness harness = new BindingHarness(request -> System.out.println("Not sent: " + request.cmd + " sid: " + request.sid));
+        if (args.length > 2) {
+            harness.addItems(new FileInputStream(args[2]));
+        }
+        harness.startOffline();
+        try {
+            int count = PacketJournal.replay(new File(args[0]), speed, (timestamp, address, port, data, length) -> {
+                String packet = new String(data, 0, length, "UTF-8");
+                System.out.println(timestamp + " " + address + ":" + port + " " + packet);
+                harness.process(packet, timestamp);
+            });
+            System.out.println("Replayed " + count + " packets, " + harness.getUpdates() + " item updates");
+        } finally {
+            harness.stop();
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Gateway stand-in on the loopback interface. It announces itself to a binding with an iam, sends a packet corpus
+ * at a fixed rate and answers get_id_list, read and write requests like the gateway.
+ * <p>
+ * Every n-th packet is a probe: a temperature report of {@link #PROBE_SID} with a value not sent before in the run,
+ * its send time is kept until {@link #probeReceived} is called with the value the binding published.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+class LoopbackGateway implements Closeable {
+
+    static final String SID = "f0b429b0a1b2";
+    static final String PROBE_SID = "158d00010a0b0c";
+    static final String TOKEN = "1234567890abcdef";
+
+    //probe temperatures 10.00 - 99.99 are sent as 4 digit values
+    private static final int PROBE_BASE = 1000;
+    private static final int PROBE_VALUES = 9000;
+
+    private static final Pattern CMD = Pattern.compile("\"cmd\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern SID_FIELD = Pattern.compile("\"sid\"\\s*:\\s*\"([^\"]+)\"");
+    private static final Pattern MODEL = Pattern.compile("\"model\"\\s*:\\s*\"([^\"]+)\"");
+
+    private final DatagramSocket socket;
+    private final List<String> packets;
+    //last packet with data per sid, answered as read_ack
+    private final Map<String, String> devices = new LinkedHashMap<String, String>();
+    private final Map<Integer, Long> probes = new ConcurrentHashMap<Integer, Long>();
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+    private final AtomicLong probesSent = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile InetSocketAddress binding;
+    private final Thread receiver;
+    private Thread sender;
+    private int probeSeq = 0;
+
+    LoopbackGateway(List<String> packets) throws SocketException {
+        this.packets = packets;
+        for (String packet : packets) {
+            String sid = find(SID_FIELD, packet);
+            if (sid != null && find(MODEL, packet) != null && packet.contains("\"data\"")) {
+                devices.put(sid, packet);
+            }
+        }
+        //the probe answers reads without a temperature, it would be taken for a probe
+        devices.put(PROBE_SID, "{\"cmd\":\"read_ack\",\"model\":\"sensor_ht\",\"sid\":\"" + PROBE_SID
+                + "\",\"short_id\":4321,\"data\":\"{\\\"voltage\\\":3000,\\\"humidity\\\":\\\"5000\\\"}\"}");
+        socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = new Thread(this::answerRequests, "loopback gateway receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends an iam to the binding on the given local port, the binding then talks to this gateway
+     */
+    void announce(int bindingPort) throws IOException {
+        binding = new InetSocketAddress(InetAddress.getLoopbackAddress(), bindingPort);
+        send("{\"cmd\":\"iam\",\"port\":\"" + socket.getLocalPort() + "\",\"sid\":\"" + SID
+                + "\",\"model\":\"gateway\",\"ip\":\"" + InetAddress.getLoopbackAddress().getHostAddress() + "\"}");
+    }
+
+    /**
+     * Sends the corpus round robin at the given rate until {@link #stopSending}, every probeEvery-th packet is a probe
+     */
+    synchronized void startSending(final int packetsPerSecond, final int probeEvery) {
+        stopSending();
+        sender = new Thread(() -> {
+            long period = 1000000000L / packetsPerSecond;
+            long next = System.nanoTime();
+            for (long i = 0; !Thread.currentThread().isInterrupted(); i++) {
+                next += period;
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    LockSupport.parkNanos(delay);
+                }
+                try {
+                    if (i % probeEvery == probeEvery - 1) {
+                        sendProbe();
+                    } else {
+                        send(packets.get((int) (i % packets.size())));
+                    }
+                } catch (IOException e) {
+                    sendErrors.incrementAndGet();
+                }
+            }
+        }, "loopback gateway sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    synchronized void stopSending() {
+        if (sender == null) {
+            return;
+        }
+        sender.interrupt();
+        try {
+            sender.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sender = null;
+    }
+
+    /**
+     * Returns the ms since the probe with the published value was sent or -1 for an unknown value
+     */
+    long probeReceived(double value) {
+        Long sentAt = probes.remove((int) Math.round(value * 100));
+        return sentAt != null ? (System.nanoTime() - sentAt) / 1000000 : -1;
+    }
+
+    /**
+     * Forgets the probes still in flight, they count as lost
+     */
+    void clearProbes() {
+        probes.clear();
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    long getProbesSent() {
+        return probesSent.get();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public void close() {
+        stopSending();
+        socket.close();
+        try {
+            receiver.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendProbe() throws IOException {
+        int value = PROBE_BASE + probeSeq++ % PROBE_VALUES;
+        probes.put(value, System.nanoTime());
+        probesSent.incrementAndGet();
+        send(probe(value));
+    }
+
+    private static String probe(int value) {
+        return "{\"cmd\":\"report\",\"model\":\"sensor_ht\",\"sid\":\"" + PROBE_SID + "\",\"short_id\":4321,\"data\":\"{\\\"temperature\\\":\\\"" + value + "\\\"}\"}";
+    }
+
+    private void send(String packet) throws IOException {
+        InetSocketAddress to = binding;
+        if (to == null) {
+            return;
+        }
+        byte[] data = packet.getBytes(StandardCharsets.UTF_8);
+        socket.send(new DatagramPacket(data, data.length, to));
+        sent.incrementAndGet();
+    }
+
+    private void answerRequests() {
+        byte[] buffer = new byte[8192];
+        DatagramPacket dgram = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                dgram.setLength(buffer.length);
+                socket.receive(dgram);
+                requests.incrementAndGet();
+                String request = new String(dgram.getData(), 0, dgram.getLength(), StandardCharsets.UTF_8);
+                String answer = answer(find(CMD, request), find(SID_FIELD, request));
+                if (answer != null) {
+                    byte[] data = answer.getBytes(StandardCharsets.UTF_8);
+                    socket.send(new DatagramPacket(data, data.length, dgram.getSocketAddress()));
+                }
+            } catch (IOException e) {
+                //closed
+            }
+        }
+    }
+
+    private String answer(String cmd, String sid) {
+        if ("get_id_list".equals(cmd)) {
+            List<String> ids = new ArrayList<String>();
+            for (String device : devices.keySet()) {
+                if (!device.equals(SID)) {
+                    ids.add("\\\"" + device + "\\\"");
+                }
+            }
+            return "{\"cmd\":\"get_id_list_ack\",\"sid\":\"" + SID + "\",\"token\":\"" + TOKEN + "\",\"data\":\"" + ids.toString().replace(" ", "") + "\"}";
+        }
+        String packet = sid != null ? devices.get(sid) : null;
+        if (packet == null) {
+            return null;
+        }
+        if ("read".equals(cmd)) {
+            return packet.replaceFirst("\"cmd\":\"[^\"]+\"", "\"cmd\":\"read_ack\"");
+        }
+        if ("write".equals(cmd)) {
+            return packet.replaceFirst("\"cmd\":\"[^\"]+\"", "\"cmd\":\"write_ack\"");
+        }
+        return null;
+    }
+
+    private static String find(Pattern pattern, String text) {
+        Matcher m = pattern.matcher(text);
+        return m.find() ? m.group(1) : null;
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class MBeanRegistryTest {
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final MBeanRegistry registry = new MBeanRegistry();
+
+    @After
+    public void tearDown() {
+        registry.unregisterAll();
+    }
+
+    @Test
+    public void exposesAttributesAndOperationsOfTheComponent() throws Exception {
+        RoundTripTracker roundTrips = new RoundTripTracker();
+        roundTrips.readSent("158d0001182814", 0);
+        roundTrips.readAcked("158d0001182814", TimeUnit.MILLISECONDS.toNanos(20));
+        registry.register("RoundTrips", roundTrips, RoundTripTrackerMBean.class);
+
+        ObjectName name = new ObjectName("org.openhab.binding.xiaomigateway:type=RoundTrips");
+        assertEquals(1L, server.getAttribute(name, "ReadAcks"));
+        assertEquals(1L, server.getAttribute(name, "RoundTrips"));
+        server.invoke(name, "resetRoundTrips", null, null);
+        assertEquals(0L, server.getAttribute(name, "RoundTrips"));
+    }
+
+    @Test
+    public void unregistersAllComponents() throws Exception {
+        registry.register("Packets", new PacketStatistics(), PacketStatisticsMBean.class);
+        registry.register("Duplicates", new DuplicateFilter(1000), DuplicateFilterMBean.class);
+        registry.unregisterAll();
+
+        assertFalse(server.isRegistered(new ObjectName("org.openhab.binding.xiaomigateway:type=Packets")));
+        assertFalse(server.isRegistered(new ObjectName("org.openhab.binding.xiaomigateway:type=Duplicates")));
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class PacketJournalTest {
+
+    private static final int SIZE = 128 * 1024;
+    private static final int DATA_START = 32;
+    private static final int RECORD_HEADER_LENGTH = 15;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private InetAddress address;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile("xiaomigateway.journal");
+        address = InetAddress.getByName("127.0.0.1");
+    }
+
+    @Test
+    public void replaysRecordsInOrder() throws Exception {
+        write("first", "second", "third");
+
+        List<String> packets = replay();
+
+        assertEquals(3, packets.size());
+        assertEquals("1000 first", packets.get(0));
+        assertEquals("1002 third", packets.get(2));
+    }
+
+    @Test
+    public void keepsTheNewestRecordsWhenFull() throws Exception {
+        PacketJournal journal = PacketJournal.open(file, SIZE);
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 1000; i++) {
+            journal.append(i, address, 9898, data, 0, data.length);
+        }
+        journal.close();
+
+        List<Long> timestamps = new ArrayList<Long>();
+        PacketJournal.replay(file, 0, (timestamp, address, port, packet, length) -> timestamps.add(timestamp));
+
+        assertEquals((SIZE - DATA_START) / (RECORD_HEADER_LENGTH + 4 + data.length), timestamps.size());
+        assertEquals(999L, (long) timestamps.get(timestamps.size() - 1));
+    }
+
+    @Test
+    public void stopsAtNegativeRecordLength() throws Exception {
+        write("first", "second", "third");
+        putInt(DATA_START + recordLength("first"), -7);
+
+        assertEquals(1, replay().size());
+    }
+
+    @Test
+    public void stopsAtRecordLongerThanAPacket() throws Exception {
+        write("first", "second");
+        putInt(DATA_START + recordLength("first"), Integer.MAX_VALUE);
+
+        assertEquals(1, replay().size());
+    }
+
+    @Test
+    public void stopsAtTornRecord() throws Exception {
+        write("first", "second");
+        //the last record claims more bytes than have been written
+        putInt(DATA_START + recordLength("first"), recordLength("second") + 100);
+
+        assertEquals(1, replay().size());
+    }
+
+    @Test
+    public void stopsAtCorruptAddressLength() throws Exception {
+        write("first", "second");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(DATA_START + recordLength("first") + 14);
+        raf.write(200);
+        raf.close();
+
+        assertEquals(1, replay().size());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsCorruptHeader() throws Exception {
+        write("first");
+        //tail behind head
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(16);
+        raf.writeLong(Long.MAX_VALUE);
+        raf.close();
+
+        replay();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyFile() throws Exception {
+        replay();
+    }
+
+    @Test
+    public void startsFromScratchOnCorruptHeader() throws Exception {
+        write("first");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(8);
+        raf.writeLong(-1);
+        raf.close();
+
+        PacketJournal journal = PacketJournal.open(file, SIZE);
+        journal.append(5000, address, 9898, "new".getBytes("UTF-8"), 0, 3);
+        journal.close();
+
+        List<String> packets = replay();
+        assertEquals(1, packets.size());
+        assertEquals("5000 new", packets.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void startsFromScratchOnTornRecord() throws Exception {
+        write("first", "second", "third");
+        //a zero length never reaches the head
+        putInt(DATA_START + recordLength("first"), 0);
+
+        PacketJournal journal = PacketJournal.open(file, SIZE);
+        journal.append(5000, address, 9898, "new".getBytes("UTF-8"), 0, 3);
+        journal.close();
+
+        List<String> packets = replay();
+        assertEquals(1, packets.size());
+        assertEquals("5000 new", packets.get(0));
+    }
+
+    @Test(timeout = 10000)
+    public void startsFromScratchOnRecordCorruptedWhileOpen() throws Exception {
+        PacketJournal journal = PacketJournal.open(file, SIZE);
+        byte[] data = new byte[1000];
+        journal.append(0, address, 9898, data, 0, data.length);
+        //the mapping shares the file, the oldest record is dropped first when the journal is full
+        putInt(DATA_START, 0);
+        for (int i = 1; i < 200; i++) {
+            journal.append(i, address, 9898, data, 0, data.length);
+        }
+        journal.close();
+
+        List<Long> timestamps = new ArrayList<Long>();
+        PacketJournal.replay(file, 0, (timestamp, address, port, packet, length) -> timestamps.add(timestamp));
+        //the records before the reset are gone
+        assertEquals((SIZE - DATA_START) / (RECORD_HEADER_LENGTH + 4 + data.length), (long) timestamps.get(0));
+        assertEquals(199L, (long) timestamps.get(timestamps.size() - 1));
+    }
+
+    private void write(String... packets) throws Exception {
+        PacketJournal journal = PacketJournal.open(file, SIZE);
+        long timestamp = 1000;
+        for (String packet : packets) {
+            byte[] data = packet.getBytes("UTF-8");
+            journal.append(timestamp++, address, 9898, data, 0, data.length);
+        }
+        journal.close();
+    }
+
+    private List<String> replay() throws Exception {
+        List<String> packets = new ArrayList<String>();
+        PacketJournal.replay(file, 0, (timestamp, address, port, data, length) ->
+                packets.add(timestamp + " " + new String(data, 0, length, "UTF-8")));
+        return packets;
+    }
+
+    private int recordLength(String packet) {
+        return RECORD_HEADER_LENGTH + 4 + packet.length();
+    }
+
+    private void putInt(long position, int value) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(position);
+        raf.writeInt(value);
+        raf.close();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class PowerAggregatorTest {
+
+    private static final long MINUTE = 60000;
+    private static final double MINUTE_HOURS = 1.0 / 60;
+
+    private final List<Double> closed = new ArrayList<Double>();
+    private final PowerAggregator aggregator = new PowerAggregator((itemName, value) -> closed.add(value));
+
+    @Test
+    public void closesWindowsMissedByALateTickWithTheHeldValue() {
+        aggregator.add("PlugEnergy", "energy", MINUTE, false, 0, 60);
+        aggregator.add("PlugEnergy", "energy", MINUTE, false, 30000, 120);
+        aggregator.tick(3 * MINUTE + 1000);
+
+        assertEquals(3, closed.size());
+        assertEquals(90 * MINUTE_HOURS, closed.get(0), 0.0001);
+        assertEquals(120 * MINUTE_HOURS, closed.get(1), 0.0001);
+        assertEquals(120 * MINUTE_HOURS, closed.get(2), 0.0001);
+        assertEquals(2, aggregator.getMissedWindows());
+        assertEquals(0, aggregator.getSkippedWindows());
+    }
+
+    @Test
+    public void closesMissedWindowsBeforeALateValue() {
+        aggregator.add("PlugMean", "mean", MINUTE, false, 0, 100);
+        aggregator.add("PlugMean", "mean", MINUTE, false, 2 * MINUTE + 30000, 200);
+        aggregator.tick(3 * MINUTE);
+
+        assertEquals(3, closed.size());
+        assertEquals(100, closed.get(0), 0.0001);
+        assertEquals(100, closed.get(1), 0.0001);
+        assertEquals(150, closed.get(2), 0.0001);
+        assertEquals(1, aggregator.getMissedWindows());
+    }
+
+    @Test
+    public void skipsWindowsBeyondTheCatchUpLimit() {
+        aggregator.add("PlugMax", "max", MINUTE, false, 0, 10);
+        aggregator.tick((PowerAggregator.MAX_MISSED_WINDOWS + 11) * MINUTE);
+
+        assertEquals(PowerAggregator.MAX_MISSED_WINDOWS + 1, closed.size());
+        assertEquals(PowerAggregator.MAX_MISSED_WINDOWS, aggregator.getMissedWindows());
+        assertEquals(10, aggregator.getSkippedWindows());
+    }
+}
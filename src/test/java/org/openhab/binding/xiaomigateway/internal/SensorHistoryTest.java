@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.binding.xiaomigateway.XiaomiGatewayStateService;
+import org.openhab.binding.xiaomigateway.XiaomiSensorHistory;
+import org.openhab.core.library.items.NumberItem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class SensorHistoryTest {
+
+    private static final String SID = "158d0001182814";
+
+    private BindingHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+        harness = new BindingHarness(request -> {
+        });
+        harness.addItem(new NumberItem("Temperature"), SID + ".temperature");
+        harness.startOffline();
+    }
+
+    @After
+    public void tearDown() {
+        harness.stop();
+    }
+
+    @Test
+    public void snapshotIsNotChangedByLaterSamples() {
+        XiaomiGatewayStateService service = harness.binding;
+        report("2150", 1000);
+        report("2250", 2000);
+
+        XiaomiSensorHistory history = service.getSensorHistory(SID, "temperature", 0, 10000);
+        report("2350", 3000);
+        history.getValues()[0] = 0;
+
+        assertEquals(2, history.size());
+        assertArrayEquals(new long[]{1000, 2000}, history.getTimestamps());
+        assertArrayEquals(new double[]{21.5, 22.5}, history.getValues(), 0.001);
+        assertEquals(21.5, history.getMinimum(), 0.001);
+        assertEquals(22.5, history.getMaximum(), 0.001);
+        assertEquals(22.0, history.getAverage(), 0.001);
+        assertEquals(60.0, history.getRateOfChange(), 0.001);
+        assertEquals(3, service.getSensorHistory(SID, "temperature", 0, 10000).size());
+    }
+
+    @Test
+    public void snapshotHoldsOnlyTheWindow() {
+        report("2150", 1000);
+        report("2250", 2000);
+        report("2350", 3000);
+
+        XiaomiSensorHistory history = harness.binding.getSensorHistory(SID, "temperature", 1500, 2500);
+        assertArrayEquals(new long[]{2000}, history.getTimestamps());
+        assertEquals(22.5, history.getAverage(), 0.001);
+    }
+
+    @Test
+    public void noHistoryOfAnUnboundValue() {
+        report("2150", 1000);
+        assertNull(harness.binding.getSensorHistory(SID, "humidity", 0, 10000));
+    }
+
+    private void report(String temperature, long timestamp) {
+        harness.process("{\"cmd\":\"report\",\"model\":\"sensor_ht\",\"sid\":\"" + SID + "\",\"short_id\":18174,\"data\":\"{\\\"temperature\\\":\\\"" + temperature + "\\\"}\"}", timestamp);
+    }
+}
@@ -0,0 +1,197 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.core.library.items.NumberItem;
+import org.openhab.core.library.types.DecimalType;
+import org.openhab.core.library.types.OnOffType;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Activates and deactivates the binding repeatedly while a {@link LoopbackGateway} sends the packet corpus
+ * at 10 times the packet rate of a busy gateway. Fails on binding threads surviving a deactivation, a growing
+ * number of threads or used heap and on probe reports published too late or not at all.
+ * <p>
+ * The build runs it only with the soak profile (mvn test -Psoak). The run length and the thresholds are
+ * system properties (soak.*), the profile sets the defaults.
+ *
+ * @author agent
+ * @since 1.9.0
+ */
+public class SoakTest {
+
+    private static final String PROBE_ITEM = "Probe";
+
+    private final int cycles = Integer.getInteger("soak.cycles", 5);
+    private final long cycleTime = Long.getLong("soak.cycleTime", 8000);
+    //10 x 20 packets/s
+    private final int rate = Integer.getInteger("soak.rate", 200);
+    private final int probeEvery = Integer.getInteger("soak.probeEvery", 10);
+    private final long maxHeapGrowth = Long.getLong("soak.maxHeapGrowth", 16L * 1024 * 1024);
+    private final int maxThreadGrowth = Integer.getInteger("soak.maxThreadGrowth", 2);
+    private final long maxLatencyP99 = Long.getLong("soak.maxLatencyP99", 250);
+    private final double minDelivery = Double.parseDouble(System.getProperty("soak.minDelivery", "0.95"));
+    private final long threadStopTime = Long.getLong("soak.threadStopTime", 5000);
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong delivered = new AtomicLong();
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private LoopbackGateway gateway;
+    private BindingHarness harness;
+
+    @Before
+    public void setUp() throws Exception {
+        gateway = new LoopbackGateway(BindingHarness.readLines(getClass().getResourceAsStream("packets.txt")));
+        harness = new BindingHarness();
+        harness.addItems(getClass().getResourceAsStream("items.txt"));
+        harness.addItem(new NumberItem(PROBE_ITEM), LoopbackGateway.PROBE_SID + ".temperature");
+        harness.setUpdateListener((itemName, state) -> {
+            if (PROBE_ITEM.equals(itemName) && state instanceof DecimalType) {
+                long ms = gateway.probeReceived(((DecimalType) state).doubleValue());
+                if (ms >= 0) {
+                    latency.record(ms);
+                    delivered.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (harness != null) {
+            harness.stop();
+        }
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+
+    @Test
+    public void survivesActivationCyclesUnderLoad() throws Exception {
+        List<String> failures = new ArrayList<String>();
+        List<String> summaries = new ArrayList<String>();
+        long baseHeap = 0;
+        int baseThreads = 0;
+        long maxHeap = 0;
+        int maxThreads = 0;
+
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            runCycle();
+
+            if (!waitForBindingThreads()) {
+                failures.add("cycle " + cycle + ": binding threads alive after deactivate " + getBindingThreads());
+            }
+            long heap = getUsedHeapAfterGc();
+            int threadCount = threads.getThreadCount();
+            summaries.add("cycle " + cycle + ": heap " + heap / 1024 + " kB, threads " + threadCount
+                    + ", probes " + delivered.get() + "/" + gateway.getProbesSent() + ", p99 " + latency.getPercentile(99) + " ms");
+            //the first cycle warms up classes, caches and the JIT
+            if (cycle == 0) {
+                baseHeap = heap;
+                baseThreads = threadCount;
+            } else {
+                maxHeap = Math.max(maxHeap, heap);
+                maxThreads = Math.max(maxThreads, threadCount);
+            }
+        }
+
+        assertTrue("The binding did not request anything from the gateway", gateway.getRequests() > 0);
+        assertTrue("No probe sent", gateway.getProbesSent() > 0);
+        if (cycles > 1 && maxHeap - baseHeap > maxHeapGrowth) {
+            failures.add("used heap grew by " + (maxHeap - baseHeap) / 1024 + " kB, allowed " + maxHeapGrowth / 1024 + " kB");
+        }
+        if (cycles > 1 && maxThreads - baseThreads > maxThreadGrowth) {
+            failures.add("threads grew from " + baseThreads + " to " + maxThreads);
+        }
+        long p99 = latency.getPercentile(99);
+        if (p99 > maxLatencyP99) {
+            failures.add("p99 latency " + p99 + " ms, allowed " + maxLatencyP99 + " ms");
+        }
+        double delivery = (double) delivered.get() / gateway.getProbesSent();
+        if (delivery < minDelivery) {
+            failures.add("delivered " + delivered.get() + " of " + gateway.getProbesSent() + " probes, at least "
+                    + minDelivery * 100 + "% required");
+        }
+        if (!failures.isEmpty()) {
+            fail("Soak failed: " + failures + ", runs: " + summaries);
+        }
+    }
+
+    private void runCycle() throws Exception {
+        Map<String, Object> configuration = new HashMap<String, Object>();
+        configuration.put("key", "0123456789abcdef");
+        harness.activate(0, configuration);
+        int port = harness.getReceivePort();
+        assertTrue("The binding has no socket", port > 0);
+        gateway.announce(port);
+        gateway.startSending(rate, probeEvery);
+
+        //commands to the plug exercise the writes and their acks
+        long end = System.currentTimeMillis() + cycleTime;
+        boolean on = false;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(500);
+            on = !on;
+            harness.command("Plug", on ? OnOffType.ON : OnOffType.OFF);
+        }
+
+        gateway.stopSending();
+        //the probes on their way are published before the deactivation
+        Thread.sleep(maxLatencyP99 * 2);
+        harness.stop();
+        gateway.clearProbes();
+    }
+
+    private boolean waitForBindingThreads() throws InterruptedException {
+        long end = System.currentTimeMillis() + threadStopTime;
+        while (!getBindingThreads().isEmpty()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    private static List<String> getBindingThreads() {
+        List<String> names = new ArrayList<String>();
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().startsWith("XiaomiGateway") && t.isAlive()) {
+                names.add(t.getName());
+            }
+        }
+        return names;
+    }
+
+    private long getUsedHeapAfterGc() throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
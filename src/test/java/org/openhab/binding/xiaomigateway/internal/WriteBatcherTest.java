@@ -0,0 +1,121 @@
+/**
+ * Copyright (c) 2010-2015, openHAB.org and others.
+ * <p>
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+package org.openhab.binding.xiaomigateway.internal;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author agent
+ * @since 1.9.0
+ */
+public class WriteBatcherTest {
+
+    private static final String SID = "158d00012944b3";
+
+    private final List<WriteBatcher.Write> sent = new ArrayList<WriteBatcher.Write>();
+    private final WriteBatcher batcher = new WriteBatcher(this::send);
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        batcher.configure(50, 1000, 2);
+        batcher.start(scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        batcher.stop();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void mergesWritesToDifferentKeysOfOneDevice() throws Exception {
+        batcher.add(SID, new String[]{"channel_0"}, new Object[]{"on"});
+        batcher.add(SID, new String[]{"channel_1"}, new Object[]{"off"});
+        Thread.sleep(200);
+
+        List<WriteBatcher.Write> writes = getSent();
+        assertEquals(1, writes.size());
+        assertArrayEquals(new String[]{"channel_0", "channel_1"}, writes.get(0).keys);
+        assertArrayEquals(new Object[]{"on", "off"}, writes.get(0).values);
+    }
+
+    @Test
+    public void newerWriteReplacesTheSameKey() throws Exception {
+        batcher.add(SID, new String[]{"channel_0"}, new Object[]{"on"});
+        batcher.add(SID, new String[]{"channel_0"}, new Object[]{"off"});
+        Thread.sleep(200);
+
+        List<WriteBatcher.Write> writes = getSent();
+        assertEquals(1, writes.size());
+        assertArrayEquals(new String[]{"channel_0"}, writes.get(0).keys);
+        assertArrayEquals(new Object[]{"off"}, writes.get(0).values);
+    }
+
+    @Test
+    public void keepsKeysOfAWriteWaitingForItsAck() throws Exception {
+        batcher.add(SID, new String[]{"channel_0"}, new Object[]{"on"});
+        Thread.sleep(200);
+        batcher.sent(SID, System.currentTimeMillis());
+        batcher.add(SID, new String[]{"channel_1"}, new Object[]{"on"});
+        Thread.sleep(200);
+
+        List<WriteBatcher.Write> writes = getSent();
+        assertEquals(2, writes.size());
+        assertArrayEquals(new String[]{"channel_0", "channel_1"}, writes.get(1).keys);
+
+        batcher.acked(SID, true);
+        assertEquals(1, batcher.getAcknowledged());
+        assertEquals(0, batcher.getPending());
+    }
+
+    @Test
+    public void keepsWritesOfDifferentDevicesApart() throws Exception {
+        batcher.add(SID, new String[]{"status"}, new Object[]{"on"});
+        batcher.add("158d00012944b4", new String[]{"status"}, new Object[]{"off"});
+        Thread.sleep(200);
+
+        assertEquals(2, getSent().size());
+        assertEquals(1, batcher.getBatches());
+    }
+
+    @Test
+    public void retriesWriteWithoutAck() throws Exception {
+        batcher.configure(0, 100, 1);
+        batcher.add(SID, new String[]{"status"}, new Object[]{"on"});
+        batcher.sent(SID, System.currentTimeMillis());
+        Thread.sleep(400);
+        batcher.sent(SID, System.currentTimeMillis());
+        Thread.sleep(400);
+
+        assertEquals(2, getSent().size());
+        assertEquals(1, batcher.getRetried());
+        assertEquals(1, batcher.getFailed());
+    }
+
+    private synchronized void send(WriteBatcher.Write write) {
+        sent.add(new WriteBatcher.Write(write.sid, Arrays.copyOf(write.keys, write.keys.length), write.values));
+    }
+
+    private synchronized List<WriteBatcher.Write> getSent() {
+        return new ArrayList<WriteBatcher.Write>(sent);
+    }
+}